@@ -0,0 +1,169 @@
+package com.edwardraff.wekajsatbridge;
+
+/*
+ * Copyright (C) 2014 Edward Raff
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/**
+ * Running statistics of a single numeric column, gathered in one pass. Missing
+ * values (NaN) are counted separately and do not contribute to the other
+ * statistics. <br>
+ * <br>
+ * A {@link ColumnTransform} uses these statistics to fit itself, and then
+ * updates them to describe its output, so that the next transform in a
+ * {@link ColumnTransformChain} can be fit without another pass over the data.
+ *
+ * @author Edward Raff
+ */
+public class ColumnStatistics
+{
+    private long count;
+    private long missing;
+    private double mean;
+    /**
+     * Sum of squared differences from the mean
+     */
+    private double m2;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    /**
+     * Adds a value of the column
+     * @param value the value to add, or NaN for a missing value
+     */
+    public void add(double value)
+    {
+        if(Double.isNaN(value))
+        {
+            missing++;
+            return;
+        }
+        count++;
+        double delta = value - mean;
+        mean += delta / count;
+        m2 += delta * (value - mean);
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Adds the same value many times. This is used to account for the zeros
+     * that sparse rows do not store.
+     * @param value the value to add, which must not be NaN
+     * @param times the number of times to add the value
+     */
+    public void addRepeated(double value, long times)
+    {
+        if(times <= 0)
+            return;
+        long total = count + times;
+        double delta = value - mean;
+        mean += delta * times / total;
+        m2 += delta * delta * count * times / total;
+        count = total;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Updates the statistics to describe the column after every value
+     * <i>x</i> has been replaced by (<i>x</i> - offset) * scale
+     * @param offset the value subtracted from every value
+     * @param scale the positive value every value is multiplied by
+     */
+    public void applyAffine(double offset, double scale)
+    {
+        mean = (mean - offset) * scale;
+        m2 *= scale * scale;
+        if(count > 0)
+        {
+            min = (min - offset) * scale;
+            max = (max - offset) * scale;
+        }
+    }
+
+    /**
+     * Updates the statistics to describe the column after every missing
+     * value has been replaced by the given value
+     * @param value the value missing values are replaced with
+     */
+    public void fillMissing(double value)
+    {
+        addRepeated(value, missing);
+        missing = 0;
+    }
+
+    /**
+     * @return the number of values seen, missing or not
+     */
+    public long getObservations()
+    {
+        return count + missing;
+    }
+
+    /**
+     * @return the number of non-missing values
+     */
+    public long getCount()
+    {
+        return count;
+    }
+
+    /**
+     * @return the number of missing values
+     */
+    public long getMissing()
+    {
+        return missing;
+    }
+
+    /**
+     * @return the mean of the non-missing values
+     */
+    public double getMean()
+    {
+        return mean;
+    }
+
+    /**
+     * @return the population variance of the non-missing values
+     */
+    public double getVariance()
+    {
+        if(count == 0)
+            return 0;
+        return m2 / count;
+    }
+
+    /**
+     * @return the smallest non-missing value, or positive infinity if there
+     * were none
+     */
+    public double getMin()
+    {
+        return min;
+    }
+
+    /**
+     * @return the largest non-missing value, or negative infinity if there
+     * were none
+     */
+    public double getMax()
+    {
+        return max;
+    }
+}
@@ -0,0 +1,136 @@
+package com.edwardraff.wekajsatbridge;
+
+/*
+ * Copyright (C) 2014 Edward Raff
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.io.Serializable;
+
+/**
+ * A transform that is applied to each numeric column independently, while a
+ * dataset is being converted by {@link InstanceHandler}. Missing values are
+ * represented by NaN.
+ *
+ * @author Edward Raff
+ * @see ColumnTransformChain
+ */
+public abstract class ColumnTransform implements Serializable
+{
+    /**
+     * Fits this transform to the statistics of its input columns, and then
+     * updates those statistics in place to describe the transformed columns.
+     * @param stats the statistics of each numeric column
+     */
+    public abstract void fit(ColumnStatistics[] stats);
+
+    /**
+     * Transforms a single value. This may only be called after
+     * {@link #fit(com.edwardraff.wekajsatbridge.ColumnStatistics[]) }
+     * @param column the numeric column the value belongs to
+     * @param value the value to transform
+     * @return the transformed value
+     */
+    public abstract double transform(int column, double value);
+
+    /**
+     * Transforms each column to have zero mean and unit variance. Columns with
+     * no variance are only shifted to zero mean.
+     */
+    public static class Standardize extends ColumnTransform
+    {
+        private double[] means;
+        private double[] invStdDevs;
+
+        @Override
+        public void fit(ColumnStatistics[] stats)
+        {
+            means = new double[stats.length];
+            invStdDevs = new double[stats.length];
+            for(int i = 0; i < stats.length; i++)
+            {
+                means[i] = stats[i].getMean();
+                double stdDev = Math.sqrt(stats[i].getVariance());
+                invStdDevs[i] = stdDev > 0 ? 1/stdDev : 1;
+                stats[i].applyAffine(means[i], invStdDevs[i]);
+            }
+        }
+
+        @Override
+        public double transform(int column, double value)
+        {
+            return (value - means[column]) * invStdDevs[column];
+        }
+    }
+
+    /**
+     * Scales each column into the range [0, 1]. Columns with only one value
+     * are only shifted to zero.
+     */
+    public static class MinMaxScale extends ColumnTransform
+    {
+        private double[] mins;
+        private double[] invRanges;
+
+        @Override
+        public void fit(ColumnStatistics[] stats)
+        {
+            mins = new double[stats.length];
+            invRanges = new double[stats.length];
+            for(int i = 0; i < stats.length; i++)
+            {
+                double range = stats[i].getMax() - stats[i].getMin();
+                mins[i] = stats[i].getCount() > 0 ? stats[i].getMin() : 0;
+                invRanges[i] = range > 0 ? 1/range : 1;
+                stats[i].applyAffine(mins[i], invRanges[i]);
+            }
+        }
+
+        @Override
+        public double transform(int column, double value)
+        {
+            return (value - mins[column]) * invRanges[column];
+        }
+    }
+
+    /**
+     * Replaces missing values with the mean of the column. Columns with only
+     * missing values are filled with zero.
+     */
+    public static class MeanImputation extends ColumnTransform
+    {
+        private double[] means;
+
+        @Override
+        public void fit(ColumnStatistics[] stats)
+        {
+            means = new double[stats.length];
+            for(int i = 0; i < stats.length; i++)
+            {
+                means[i] = stats[i].getMean();
+                stats[i].fillMissing(means[i]);
+            }
+        }
+
+        @Override
+        public double transform(int column, double value)
+        {
+            if(Double.isNaN(value))
+                return means[column];
+            return value;
+        }
+    }
+}
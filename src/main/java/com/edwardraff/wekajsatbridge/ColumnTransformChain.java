@@ -0,0 +1,96 @@
+package com.edwardraff.wekajsatbridge;
+
+/*
+ * Copyright (C) 2014 Edward Raff
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An ordered list of {@link ColumnTransform}s that {@link InstanceHandler}
+ * applies to every numeric value while converting a dataset, so the converted
+ * dataset is already preprocessed without another pass or copy. <br>
+ * <br>
+ * The first conversion that uses a chain gathers the statistics of every
+ * numeric column in a single pre-pass, and fits all transforms from them. Later
+ * conversions reuse the fitted chain, so test data can be converted with the
+ * statistics of the training data.
+ *
+ * @author Edward Raff
+ */
+public class ColumnTransformChain implements Serializable
+{
+    private final List<ColumnTransform> transforms;
+    private int numColumns = -1;
+
+    /**
+     * Creates a new chain of transforms
+     * @param transforms the transforms to apply, in order
+     */
+    public ColumnTransformChain(ColumnTransform... transforms)
+    {
+        this.transforms = Arrays.asList(transforms.clone());
+    }
+
+    /**
+     * @return {@code true} if the transforms have been fit and are ready to use
+     */
+    public boolean isFitted()
+    {
+        return numColumns >= 0;
+    }
+
+    /**
+     * Fits every transform in turn, each one to the statistics of the output
+     * of the transforms before it.
+     * @param stats the statistics of each numeric column, which will be
+     * altered to describe the output of the last transform
+     */
+    public void fit(ColumnStatistics[] stats)
+    {
+        for(ColumnTransform transform : transforms)
+            transform.fit(stats);
+        numColumns = stats.length;
+    }
+
+    /**
+     * Applies every transform to the given value
+     * @param column the numeric column the value belongs to
+     * @param value the value to transform
+     * @return the transformed value
+     */
+    public double transform(int column, double value)
+    {
+        for(int i = 0; i < transforms.size(); i++)
+            value = transforms.get(i).transform(column, value);
+        return value;
+    }
+
+    /**
+     * Checks that this chain was fit to data with the given number of numeric
+     * columns
+     * @param numNumeric the number of numeric columns about to be transformed
+     * @throws IllegalArgumentException if the number of columns differs
+     */
+    void checkColumns(int numNumeric)
+    {
+        if(numColumns != numNumeric)
+            throw new IllegalArgumentException("Transforms were fit to " + numColumns + " numeric columns, not " + numNumeric);
+    }
+}
@@ -0,0 +1,304 @@
+package com.edwardraff.wekajsatbridge;
+
+/*
+ * Copyright (C) 2014 Edward Raff
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import jsat.DataSet;
+import weka.core.Instances;
+
+/**
+ * This class caches the results of converting datasets with
+ * {@link InstanceHandler}, so that the same source dataset handed to several
+ * wrappers is only converted once. Sources are held weakly and compared by
+ * identity, so a dataset that is no longer used elsewhere will drop out of the
+ * cache on its own. When the estimated size of the cached conversions exceeds
+ * the memory budget, the least recently used conversions are evicted. <br>
+ * <br>
+ * The cache can not see changes made to a source dataset. A source whose size
+ * has changed will be converted again, but any other modification must be
+ * followed by a call to {@link #invalidate(java.lang.Object) }. <br>
+ * <br>
+ * Learners may shuffle or remove rows of the data they are given, so every
+ * call to {@link #toInstances(jsat.DataSet) } and
+ * {@link #toDataSet(weka.core.Instances) } returns a shallow copy of the
+ * cached conversion. The rows themselves are shared, and must not be
+ * modified.
+ *
+ * @author Edward Raff
+ */
+public class ConversionCache
+{
+    private final long memoryBudget;
+    private long memoryUsed;
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+    /**
+     * Access ordered, so iteration starts with the least recently used entry
+     */
+    private final LinkedHashMap<SourceKey, Entry> entries = new LinkedHashMap<SourceKey, Entry>(16, 0.75f, true);
+
+    /**
+     * Creates a new conversion cache
+     * @param memoryBudget the estimated number of bytes the cached conversions
+     * may take up before the least recently used ones are evicted
+     */
+    public ConversionCache(long memoryBudget)
+    {
+        if(memoryBudget <= 0)
+            throw new IllegalArgumentException("memory budget must be positive, not " + memoryBudget);
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Returns the Weka version of the given dataset, converting it only if
+     * it is not already in the cache.
+     * @param dataSet the dataset to convert to a Weka dataset
+     * @return a shallow copy of the cached Weka version of this dataset,
+     * using whichever of dense or sparse instances is estimated to be smaller
+     * @see InstanceHandler#dataSetToInstances(jsat.DataSet)
+     */
+    public Instances toInstances(DataSet dataSet)
+    {
+        return toInstances(dataSet, 0);
+    }
+
+    /**
+     * Returns the Weka version of the given dataset, converting it only if
+     * it is not already in the cache. The conversion budget is only checked
+     * when the dataset has to be converted.
+     * @param dataSet the dataset to convert to a Weka dataset
+     * @param conversionBudget the most bytes the conversion may use, or zero
+     * for no limit
+     * @return a shallow copy of the cached Weka version of this dataset,
+     * using whichever of dense or sparse instances is estimated to be smaller
+     * @throws IllegalStateException if the dataset has to be converted and
+     * the conversion would exceed the budget
+     * @see MemoryEstimate#checkBudget(long)
+     */
+    public Instances toInstances(DataSet dataSet, long conversionBudget)
+    {
+        Instances instances = (Instances) get(dataSet, dataSet.getSampleSize(), false);
+        if(instances == null)
+        {
+            MemoryEstimate estimate = MemoryEstimate.ofInstances(dataSet);
+            estimate.checkBudget(conversionBudget);
+            MemoryEstimate.Representation representation = estimate.getCheapest();
+            instances = InstanceHandler.dataSetToInstances(dataSet, null, representation);
+            put(dataSet, dataSet.getSampleSize(), false, instances, estimate.getBytes(representation));
+        }
+        return new Instances(instances);
+    }
+
+    /**
+     * Returns the JSAT version of the given dataset, converting it only if it
+     * is not already in the cache.
+     * @param instances the Weka style dataset to convert to a JSAT one
+     * @return a shallow copy of the cached JSAT version of this dataset,
+     * using whichever of dense or sparse vectors is estimated to be smaller
+     * @see InstanceHandler#instancesToDataSet(weka.core.Instances)
+     */
+    public DataSet toDataSet(Instances instances)
+    {
+        return toDataSet(instances, false);
+    }
+
+    /**
+     * Returns the JSAT version of the given dataset, converting it only if it
+     * is not already in the cache with the same handling of missing values.
+     * @param instances the Weka style dataset to convert to a JSAT one
+     * @param handleMissing {@code true} to keep track of missing nominal and
+     * class values, or {@code false} to treat them as category 0
+     * @return a shallow copy of the cached JSAT version of this dataset,
+     * using whichever of dense or sparse vectors is estimated to be smaller
+     * @see InstanceHandler#instancesToDataSet(weka.core.Instances, com.edwardraff.wekajsatbridge.ColumnTransformChain, com.edwardraff.wekajsatbridge.MemoryEstimate.Representation, boolean)
+     */
+    public DataSet toDataSet(Instances instances, boolean handleMissing)
+    {
+        return toDataSet(instances, handleMissing, 0);
+    }
+
+    /**
+     * Returns the JSAT version of the given dataset, converting it only if it
+     * is not already in the cache with the same handling of missing values.
+     * The conversion budget is only checked when the dataset has to be
+     * converted.
+     * @param instances the Weka style dataset to convert to a JSAT one
+     * @param handleMissing {@code true} to keep track of missing nominal and
+     * class values, or {@code false} to treat them as category 0
+     * @param conversionBudget the most bytes the conversion may use, or zero
+     * for no limit
+     * @return a shallow copy of the cached JSAT version of this dataset,
+     * using whichever of dense or sparse vectors is estimated to be smaller
+     * @throws IllegalStateException if the dataset has to be converted and
+     * the conversion would exceed the budget
+     * @see MemoryEstimate#checkBudget(long)
+     */
+    public DataSet toDataSet(Instances instances, boolean handleMissing, long conversionBudget)
+    {
+        DataSet dataSet = (DataSet) get(instances, instances.numInstances(), handleMissing);
+        if(dataSet == null)
+        {
+            MemoryEstimate estimate = MemoryEstimate.ofDataSet(instances);
+            estimate.checkBudget(conversionBudget);
+            MemoryEstimate.Representation representation = estimate.getCheapest();
+            dataSet = InstanceHandler.instancesToDataSet(instances, null, representation, handleMissing);
+            put(instances, instances.numInstances(), handleMissing, dataSet, estimate.getBytes(representation));
+        }
+        return dataSet.shallowClone();
+    }
+
+    /**
+     * Removes the conversion of the given source dataset from the cache. This
+     * must be called after a cached source dataset has been modified.
+     * @param source the JSAT DataSet or Weka Instances that was converted
+     */
+    public synchronized void invalidate(Object source)
+    {
+        Entry entry = entries.remove(new SourceKey(source, null));
+        if(entry != null)
+            memoryUsed -= entry.bytes;
+    }
+
+    /**
+     * Removes all conversions from the cache
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        memoryUsed = 0;
+    }
+
+    /**
+     * @return the estimated number of bytes used by the cached conversions
+     */
+    public synchronized long getMemoryUsed()
+    {
+        expungeCollected();
+        return memoryUsed;
+    }
+
+    /**
+     * @return the memory budget of this cache, in bytes
+     */
+    public long getMemoryBudget()
+    {
+        return memoryBudget;
+    }
+
+    private synchronized Object get(Object source, int size, boolean handleMissing)
+    {
+        expungeCollected();
+        SourceKey key = new SourceKey(source, null);
+        Entry entry = entries.get(key);
+        if(entry == null)
+            return null;
+        if(entry.size != size || entry.handleMissing != handleMissing)//the source has changed, or was converted differently
+        {
+            entries.remove(key);
+            memoryUsed -= entry.bytes;
+            return null;
+        }
+        return entry.converted;
+    }
+
+    private synchronized void put(Object source, int size, boolean handleMissing, Object converted, long bytes)
+    {
+        expungeCollected();
+        if(bytes > memoryBudget)//would evict everything and still not fit
+            return;
+        Entry old = entries.put(new SourceKey(source, collected), new Entry(converted, size, handleMissing, bytes));
+        if(old != null)
+            memoryUsed -= old.bytes;
+        memoryUsed += bytes;
+
+        Iterator<Map.Entry<SourceKey, Entry>> iter = entries.entrySet().iterator();
+        while(memoryUsed > memoryBudget && iter.hasNext())
+        {
+            memoryUsed -= iter.next().getValue().bytes;
+            iter.remove();
+        }
+    }
+
+    /**
+     * Drops the entries whose source datasets have been garbage collected
+     */
+    private void expungeCollected()
+    {
+        Object ref;
+        while((ref = collected.poll()) != null)
+        {
+            Entry entry = entries.remove((SourceKey) ref);
+            if(entry != null)
+                memoryUsed -= entry.bytes;
+        }
+    }
+
+    /**
+     * A weak reference to a source dataset that compares by identity
+     */
+    private static class SourceKey extends WeakReference<Object>
+    {
+        private final int hash;
+
+        public SourceKey(Object source, ReferenceQueue<Object> queue)
+        {
+            super(source, queue);
+            this.hash = System.identityHashCode(source);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if(this == obj)
+                return true;
+            if(!(obj instanceof SourceKey))
+                return false;
+            Object source = get();
+            return source != null && source == ((SourceKey) obj).get();
+        }
+    }
+
+    private static class Entry
+    {
+        final Object converted;
+        /**
+         * The number of rows in the source when it was converted
+         */
+        final int size;
+        final boolean handleMissing;
+        final long bytes;
+
+        public Entry(Object converted, int size, boolean handleMissing, long bytes)
+        {
+            this.converted = converted;
+            this.size = size;
+            this.handleMissing = handleMissing;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.edwardraff.wekajsatbridge;
  */
 
 
+import java.util.Arrays;
 import jsat.DataSet;
 import jsat.SimpleDataSet;
 import jsat.classifiers.CategoricalData;
@@ -37,12 +38,21 @@ import weka.core.UnassignedDatasetException;
 
 /**
  * This class provides methods to convert between JSAT and Weka datasets and
- * instances in both directions (JSAT to Weka and Weka to JSAT)
+ * instances in both directions (JSAT to Weka and Weka to JSAT). <br>
+ * <br>
+ * Weka marks missing values with NaN. A missing numeric value is NaN in JSAT
+ * as well, and a missing nominal value is the category -1. Converting from
+ * Weka only produces -1 when asked to handle missing values, as not every
+ * JSAT model accepts it, otherwise a missing nominal value becomes category
+ * 0. Converting to Weka always turns negative categories back into missing
+ * values.
  *
  * @author Edward Raff
  */
 public class InstanceHandler
 {
+    private static final int[] NO_NOMINAL_VALUES = new int[0];
+    private static final CategoricalData[] NO_CATEGORIES = new CategoricalData[0];
 
     /**
      * Attempts to convert a Weka Instance object into a JSAT DataPoint.<br>
@@ -54,6 +64,21 @@ public class InstanceHandler
      * @return a new DataPoint object representing the instance
      */
     public static DataPoint instanceToDataPoint(Instance instance)
+    {
+        return instanceToDataPoint(instance, false);
+    }
+
+    /**
+     * Attempts to convert a Weka Instance object into a JSAT DataPoint,
+     * optionally keeping track of missing values.
+     *
+     * @param instance the instance to convert.
+     * @param handleMissing {@code true} to turn missing nominal values into
+     * the category -1, or {@code false} to treat them as category 0
+     * @return a new DataPoint object representing the instance
+     * @see #instanceToDataPoint(weka.core.Instance)
+     */
+    public static DataPoint instanceToDataPoint(Instance instance, boolean handleMissing)
     {
         int numAttributes = instance.numAttributes();
 
@@ -79,6 +104,10 @@ public class InstanceHandler
             else if (instance.attribute(i).isNominal())
                 numNominal++;
 
+        //dense rows of all numeric data can be copied in bulk
+        if (!(instance instanceof SparseInstance) && numNumeric == numAttributes - (classIndex >= 0 ? 1 : 0))
+            return new DataPoint(denseNumericValues(instance, classIndex), NO_NOMINAL_VALUES, NO_CATEGORIES, instance.weight());
+
         //now we can create the data point
         int[] nominalValues = new int[numNominal];
         CategoricalData[] catInfo = new CategoricalData[numNominal];
@@ -101,13 +130,48 @@ public class InstanceHandler
             else if (attribute_i.isNominal())
             {
                 catInfo[nominalPos] = new CategoricalData(attribute_i.numValues());
-                nominalValues[nominalPos++] = (int) instance.value(i);
+                nominalValues[nominalPos++] = nominalValue(instance.value(i), handleMissing);
             }
         }
 
         return new DataPoint(numericValues, nominalValues, catInfo, instance.weight());
     }
 
+    /**
+     * Converts a Weka Instance into a JSAT DataPoint using a schema that was
+     * worked out ahead of time, so converting many instances of one dataset
+     * only checks the attribute types once.
+     * @param instance the instance to convert, which must have the attributes
+     * described by the schema
+     * @param schema the schema of the dataset the instance belongs to
+     * @return a new DataPoint object representing the instance
+     */
+    static DataPoint instanceToDataPoint(Instance instance, Schema schema)
+    {
+        if (schema.allNumeric && !(instance instanceof SparseInstance))
+            return new DataPoint(denseNumericValues(instance, schema.classIndex), NO_NOMINAL_VALUES, NO_CATEGORIES, instance.weight());
+
+        int[] nominalValues = new int[schema.catInfo.length];
+        Vec numericValues;
+        if (instance instanceof SparseInstance)
+        {
+            numericValues = new SparseVector(schema.numNumeric);
+            fillSparse(instance, schema, numericValues, nominalValues);
+        }
+        else
+        {
+            numericValues = new DenseVector(schema.numNumeric);
+            int numericPos = 0, nominalPos = 0;
+            for (int i = 0; i < schema.kinds.length; i++)
+                if (schema.kinds[i] == Schema.NUMERIC)
+                    numericValues.set(numericPos++, instance.value(i));
+                else if (schema.kinds[i] == Schema.NOMINAL)
+                    nominalValues[nominalPos++] = nominalValue(instance.value(i), schema.handleMissing);
+        }
+
+        return new DataPoint(numericValues, nominalValues, schema.catInfo, instance.weight());
+    }
+
     /**
      * Attempts to convert the given set of Instances into a JSAT dataset. Based
      * on the class attribute of the instances, the returned DataSet may be a
@@ -118,35 +182,84 @@ public class InstanceHandler
      */
     public static DataSet instancesToDataSet(Instances instances)
     {
-        int numAttributes = instances.numAttributes();
-
-        int numNumeric = 0;
-        int numNominal = 0;
-
-        //we need to figure out if this instance has the class value in it, which can throw an exception
-
-        int classIndex = -1;//negative means not present
-        classIndex = instances.classIndex();//dosn't throw an exception when its a Instances object
-
-        int nominalPos = 0, numericPos = 0;
+        return instancesToDataSet(instances, null);
+    }
 
-        for(int i = 0; i < numAttributes; i++)
-            if(i == classIndex)
-                continue;
-            else if(instances.attribute(i).isNumeric())
-                numNumeric++;
-            else if(instances.attribute(i).isNominal())
-                numNominal++;
+    /**
+     * Attempts to convert the given set of Instances into a JSAT dataset,
+     * applying the given transforms to every numeric value as it is converted.
+     * If the transforms have not been fit yet, they are first fit with one
+     * pass over the instances. When transforms are given, every numeric
+     * vector is dense.
+     *
+     * @param instances the Weka style dataset to convert to a JSAT one
+     * @param transforms the transforms to apply to the numeric features, or
+     * {@code null} for none
+     * @return the appropriate JSAT dataset type for the given data
+     * @see #instancesToDataSet(weka.core.Instances)
+     */
+    public static DataSet instancesToDataSet(Instances instances, ColumnTransformChain transforms)
+    {
+        return instancesToDataSet(instances, transforms, null);
+    }
 
-        CategoricalData[] catInfo = new CategoricalData[numNominal];
-        //go back and get nominal info
-         for(int i = 0; i < numAttributes; i++)
-            if(i == classIndex)
-                continue;
-            else if(instances.attribute(i).isNominal())
-                catInfo[nominalPos++] = new CategoricalData(instances.attribute(i).numValues());
+    /**
+     * Attempts to convert the given set of Instances into a JSAT dataset,
+     * storing the numeric values of every data point in the given
+     * representation.
+     *
+     * @param instances the Weka style dataset to convert to a JSAT one
+     * @param transforms the transforms to apply to the numeric features, or
+     * {@code null} for none
+     * @param representation the representation of the numeric vectors, or
+     * {@code null} to use sparse vectors for exactly the instances that are
+     * {@link SparseInstance}s. Vectors are always dense when transforms are
+     * given.
+     * @return the appropriate JSAT dataset type for the given data
+     * @see #instancesToDataSet(weka.core.Instances, com.edwardraff.wekajsatbridge.ColumnTransformChain)
+     * @see MemoryEstimate
+     */
+    public static DataSet instancesToDataSet(Instances instances, ColumnTransformChain transforms, MemoryEstimate.Representation representation)
+    {
+        return instancesToDataSet(instances, transforms, representation, false);
+    }
 
+    /**
+     * Attempts to convert the given set of Instances into a JSAT dataset,
+     * optionally keeping track of missing values. Missing values are handled
+     * as each instance is converted, so no extra pass is made over the data.
+     * Missing numeric values stay NaN, and are kept as explicit values of
+     * sparse vectors so they are not mistaken for zeros. When handling missing
+     * values, missing nominal values become the category -1 and instances
+     * with a missing class value are left out.
+     *
+     * @param instances the Weka style dataset to convert to a JSAT one
+     * @param transforms the transforms to apply to the numeric features, or
+     * {@code null} for none
+     * @param representation the representation of the numeric vectors, or
+     * {@code null} to use sparse vectors for exactly the instances that are
+     * {@link SparseInstance}s
+     * @param handleMissing {@code true} to keep track of missing nominal and
+     * class values, or {@code false} to treat them as category 0
+     * @return the appropriate JSAT dataset type for the given data
+     * @see #instancesToDataSet(weka.core.Instances, com.edwardraff.wekajsatbridge.ColumnTransformChain, com.edwardraff.wekajsatbridge.MemoryEstimate.Representation)
+     */
+    public static DataSet instancesToDataSet(Instances instances, ColumnTransformChain transforms, MemoryEstimate.Representation representation, boolean handleMissing)
+    {
+        Schema schema = new Schema(instances, handleMissing);
+        int classIndex = schema.classIndex;//negative means not present
+        int numNumeric = schema.numNumeric;
+        int numNominal = schema.catInfo.length;
+        CategoricalData[] catInfo = schema.catInfo;
 
+        if(transforms != null)
+        {
+            if(!transforms.isFitted())
+                transforms.fit(gatherStatistics(instances, schema));
+            transforms.checkColumns(numNumeric);
+        }
+        //dense rows of all numeric data can be copied in bulk
+        boolean numericOnly = transforms == null && schema.allNumeric;
 
         DataSet dataSet;
         if(classIndex < 0)//no target value
@@ -165,24 +278,43 @@ public class InstanceHandler
         for(int i = 0; i < instances.numInstances(); i++)
         {
             Instance instance = instances.instance(i);
-            int[] nominalVals = new int[numNominal];
+            if(handleMissing && classIndex >= 0 && instance.classIsMissing())
+                continue;
+            int[] nominalVals;
             Vec numericVals;
-            if(instance instanceof SparseInstance)
-                numericVals = new SparseVector(numNumeric);
+            boolean sparseRow = representation == null ? instance instanceof SparseInstance : representation == MemoryEstimate.Representation.SPARSE;
+            if(numericOnly && !sparseRow && !(instance instanceof SparseInstance))
+            {
+                nominalVals = NO_NOMINAL_VALUES;
+                numericVals = denseNumericValues(instance, classIndex);
+            }
+            else if(instance instanceof SparseInstance && transforms == null)
+            {
+                nominalVals = new int[numNominal];
+                if(sparseRow)
+                    numericVals = new SparseVector(numNumeric);
+                else
+                    numericVals = new DenseVector(numNumeric);
+                fillSparse(instance, schema, numericVals, nominalVals);
+            }
             else
-                numericVals = new DenseVector(numNumeric);
-
-            numericPos = 0;
-            nominalPos = 0;
-            for (int j = 0; j < instances.numAttributes(); j++)
             {
-                if(j == classIndex)
-                    continue;
-                Attribute attribute_i = instance.attribute(j);
-                if (attribute_i.isNumeric())
-                    numericVals.set(numericPos++, instance.value(j));
-                else if (attribute_i.isNominal())
-                    nominalVals[nominalPos++] = (int) instance.value(j);
+                nominalVals = new int[numNominal];
+                if(sparseRow && transforms == null)
+                    numericVals = new SparseVector(numNumeric);
+                else
+                    numericVals = new DenseVector(numNumeric);
+
+                for (int j = 0; j < schema.kinds.length; j++)
+                {
+                    int col = schema.columns[j];
+                    if (schema.kinds[j] == Schema.NUMERIC && transforms != null)
+                        numericVals.set(col, transforms.transform(col, instance.value(j)));
+                    else if (schema.kinds[j] == Schema.NUMERIC)
+                        numericVals.set(col, instance.value(j));
+                    else if (schema.kinds[j] == Schema.NOMINAL)
+                        nominalVals[col] = nominalValue(instance.value(j), handleMissing);
+                }
             }
 
             DataPoint dp = new DataPoint(numericVals, nominalVals, catInfo, instance.weight());
@@ -204,18 +336,42 @@ public class InstanceHandler
      * @return the Weka Instance representing this DataPoint
      */
     public static Instance dataPointToInstance(DataPoint dp)
+    {
+        Vec numericValues = dp.getNumericalValues();
+        if(dp.getCategoricalValues().length == 0 && numericValues instanceof DenseVector)
+            return new Instance(dp.getWeight(), numericValues.arrayCopy());
+        double[] attValues = new double[dp.getCategoricalValues().length + dp.getNumericalValues().length()];
+        return dataPointToInstance(dp, attValues);
+    }
+
+    /**
+     * Converts a JSAT DataPoint to a Weka Instance that uses the given array
+     * to store its values, so the array can be reused for many data points.
+     * Weka copies the values before changing them, so the array is only
+     * written to by this method.
+     * @param dp the datapoint to convert to a Weka Instance
+     * @param attValues the array to store the values in, which must be at
+     * least as long as the number of features in the data point
+     * @return the Weka Instance representing this DataPoint, which is only
+     * valid until the array is reused
+     */
+    static Instance dataPointToInstance(DataPoint dp, double[] attValues)
     {
         int[] nominalValues = dp.getCategoricalValues();
         Vec numericValues = dp.getNumericalValues();
+        if (nominalValues.length == 0 && numericValues instanceof DenseVector)
+        {
+            copyDense((DenseVector) numericValues, attValues, 0);
+            return new Instance(dp.getWeight(), attValues);
+        }
 
-        Instance instance = new Instance(nominalValues.length + numericValues.length());
         int pos = 0;
         for (int i = 0; i < nominalValues.length; i++)
-            instance.setValue(pos++, nominalValues[i]);
-        for (int i = 0; i < numericValues.length(); i++)
-            instance.setValue(pos++, numericValues.get(i));
-        instance.setWeight(dp.getWeight());
-        return instance;
+            attValues[pos++] = wekaNominalValue(nominalValues[i]);
+        Arrays.fill(attValues, pos, pos + numericValues.length(), 0.0);
+        for (IndexValue iv : numericValues)//only the non-zeros
+            attValues[pos + iv.getIndex()] = iv.getValue();
+        return new Instance(dp.getWeight(), attValues);
     }
 
     /**
@@ -228,6 +384,115 @@ public class InstanceHandler
      * @return the Weka Instances object version of this JSAT dataset
      */
     public static Instances dataSetToInstances(DataSet dataSet)
+    {
+        return dataSetToInstances(dataSet, null);
+    }
+
+    /**
+     * Converts a JSAT dataset into a Weka Instances object, applying the
+     * given transforms to every numeric value as it is converted. If the
+     * transforms have not been fit yet, they are first fit with one pass over
+     * the dataset.
+     *
+     * @param dataSet the dataset to convert to a Weka dataset
+     * @param transforms the transforms to apply to the numeric features, or
+     * {@code null} for none
+     * @return the Weka Instances object version of this JSAT dataset
+     * @see #dataSetToInstances(jsat.DataSet)
+     */
+    public static Instances dataSetToInstances(DataSet dataSet, ColumnTransformChain transforms)
+    {
+        return dataSetToInstances(dataSet, transforms, MemoryEstimate.Representation.DENSE);
+    }
+
+    /**
+     * Converts a JSAT dataset into a Weka Instances object, storing every
+     * instance in the given representation. A sparse representation creates
+     * {@link SparseInstance}s, which only store the non-zero values.
+     *
+     * @param dataSet the dataset to convert to a Weka dataset
+     * @param transforms the transforms to apply to the numeric features, or
+     * {@code null} for none
+     * @param representation the representation of the instances
+     * @return the Weka Instances object version of this JSAT dataset
+     * @see #dataSetToInstances(jsat.DataSet, com.edwardraff.wekajsatbridge.ColumnTransformChain)
+     * @see MemoryEstimate
+     */
+    public static Instances dataSetToInstances(DataSet dataSet, ColumnTransformChain transforms, MemoryEstimate.Representation representation)
+    {
+        boolean sparse = representation == MemoryEstimate.Representation.SPARSE;
+        int numNumeric = dataSet.getNumNumericalVars();
+        double[] transformedZeros = null;
+        if(transforms != null)
+        {
+            if(!transforms.isFitted())
+                transforms.fit(gatherStatistics(dataSet));
+            transforms.checkColumns(numNumeric);
+            //sparse vectors only store non-zeros, so start from what zero becomes
+            transformedZeros = new double[numNumeric];
+            for(int j = 0; j < numNumeric; j++)
+                transformedZeros[j] = transforms.transform(j, 0.0);
+        }
+
+        Instances instances = createHeader(dataSet, true, dataSet.getSampleSize());
+        int classIndex = instances.classIndex();
+
+        for(int i = 0; i < dataSet.getSampleSize(); i++)
+        {
+            DataPoint dp =  dataSet.getDataPoint(i);
+            double targetValue = Double.NaN;
+            if(dataSet instanceof RegressionDataSet)
+                targetValue = ((RegressionDataSet)dataSet).getTargetValue(i);
+            else if(dataSet instanceof ClassificationDataSet)
+                targetValue = ((ClassificationDataSet)dataSet).getDataPointCategory(i);
+
+            if(sparse && transforms == null && dp.getNumericalValues().isSparse())
+            {
+                //only touch the non-zeros
+                instances.add(sparseInstance(dp, classIndex, targetValue, instances.numAttributes()));
+                continue;
+            }
+
+            double[] attValues = new double[instances.numAttributes()];
+            int pos = 0;
+            for(int catVal : dp.getCategoricalValues())
+                attValues[pos++] = wekaNominalValue(catVal);
+            if(transforms == null && dp.getNumericalValues() instanceof DenseVector)
+                copyDense((DenseVector) dp.getNumericalValues(), attValues, pos);
+            else if(transforms != null)
+            {
+                System.arraycopy(transformedZeros, 0, attValues, pos, numNumeric);
+                for(IndexValue iv : dp.getNumericalValues())
+                    attValues[pos+iv.getIndex()] = transforms.transform(iv.getIndex(), iv.getValue());
+            }
+            else
+                for(IndexValue iv : dp.getNumericalValues())
+                    attValues[pos+iv.getIndex()] = iv.getValue();
+            if(classIndex >= 0)
+                attValues[classIndex] = targetValue;
+            Instance instance = new Instance(dp.getWeight(), attValues);
+            if(sparse)
+                instance = new SparseInstance(instance);
+            instance.setDataset(instances);//is this needed?
+            instances.add(instance);
+        }
+
+        return instances;
+    }
+
+    /**
+     * Creates an empty Weka Instances object with the attributes of the given
+     * JSAT dataset. Nominal attributes come first, followed by the numeric
+     * ones, and then the class attribute if there is one.
+     *
+     * @param dataSet the dataset to create the header for
+     * @param includeTarget {@code true} to add the class attribute of a
+     * {@link ClassificationDataSet} or {@link RegressionDataSet}, or
+     * {@code false} to leave it out
+     * @param capacity the number of instances to make room for
+     * @return an empty Weka dataset with the same attributes as the JSAT one
+     */
+    static Instances createHeader(DataSet dataSet, boolean includeTarget, int capacity)
     {
         FastVector attributes = new FastVector();
 
@@ -245,45 +510,182 @@ public class InstanceHandler
 
         //class attribute?
         int classIndex = -1;
-        if(dataSet instanceof RegressionDataSet)
+        if(includeTarget && dataSet instanceof RegressionDataSet)
         {
             classIndex = attributes.size();
             attributes.addElement(new Attribute("regressionTarget"));
         }
-        else if(dataSet instanceof ClassificationDataSet)
+        else if(includeTarget && dataSet instanceof ClassificationDataSet)
         {
             classIndex = attributes.size();
             attributes.addElement(categoricalDataToAttribute(((ClassificationDataSet)dataSet).getPredicting(), "classTarget"));
         }
 
-        Instances instances = new Instances("JSATtoWekaDataset", attributes, dataSet.getSampleSize());
+        Instances instances = new Instances("JSATtoWekaDataset", attributes, capacity);
 
         instances.setClassIndex(classIndex);
+        return instances;
+    }
 
-        for(int i = 0; i < dataSet.getSampleSize(); i++)
+    /**
+     * Creates a sparse Weka instance directly from the non-zero values of a
+     * data point with a sparse numeric vector
+     * @param dp the data point to convert
+     * @param classIndex the index of the class attribute, or -1 if there is none
+     * @param targetValue the value of the class attribute
+     * @param numAttributes the number of attributes of the instance
+     * @return the sparse instance
+     */
+    private static SparseInstance sparseInstance(DataPoint dp, int classIndex, double targetValue, int numAttributes)
+    {
+        int[] catVals = dp.getCategoricalValues();
+        Vec numericValues = dp.getNumericalValues();
+        int maxValues = catVals.length + numericValues.nnz() + 1;
+        int[] indices = new int[maxValues];
+        double[] values = new double[maxValues];
+        int k = 0;
+        for(int j = 0; j < catVals.length; j++)
+            if(catVals[j] != 0)
+            {
+                indices[k] = j;
+                values[k++] = wekaNominalValue(catVals[j]);
+            }
+        for(IndexValue iv : numericValues)
         {
-            DataPoint dp =  dataSet.getDataPoint(i);
-            double targetValue = Double.NaN;
-            if(dataSet instanceof RegressionDataSet)
-                targetValue = ((RegressionDataSet)dataSet).getTargetValue(i);
-            else if(dataSet instanceof ClassificationDataSet)
-                targetValue = ((ClassificationDataSet)dataSet).getDataPointCategory(i);
+            indices[k] = catVals.length + iv.getIndex();
+            values[k++] = iv.getValue();
+        }
+        if(classIndex >= 0 && targetValue != 0)
+        {
+            indices[k] = classIndex;
+            values[k++] = targetValue;
+        }
+        return new SparseInstance(dp.getWeight(), Arrays.copyOf(values, k), Arrays.copyOf(indices, k), numAttributes);
+    }
 
-            //TODO handle sparse data points
-            double[] attValues = new double[attributes.size()];
-            int pos = 0;
-            for(int catVal : dp.getCategoricalValues())
-                attValues[pos++] = catVal;
-            for(IndexValue iv : dp.getNumericalValues())
-                attValues[pos++] = iv.getValue();
-            if(classIndex >= 0)
-                attValues[classIndex] = targetValue;
-            Instance instance = new Instance(dp.getWeight(), attValues);
-            instance.setDataset(instances);//is this needed?
-            instances.add(instance);
+    /**
+     * Fills in the values of a data point from only the values a sparse
+     * instance stores. Missing values are always stored, so they are never
+     * mistaken for zeros.
+     * @param instance the sparse instance to read
+     * @param schema the schema of the instance's dataset
+     * @param numericValues the zeroed vector to put the numeric values in
+     * @param nominalValues the zeroed array to put the nominal values in
+     */
+    private static void fillSparse(Instance instance, Schema schema, Vec numericValues, int[] nominalValues)
+    {
+        for(int k = 0; k < instance.numValues(); k++)
+        {
+            int j = instance.index(k);
+            if(schema.kinds[j] == Schema.NUMERIC)
+                numericValues.set(schema.columns[j], instance.valueSparse(k));
+            else if(schema.kinds[j] == Schema.NOMINAL)
+                nominalValues[schema.columns[j]] = nominalValue(instance.valueSparse(k), schema.handleMissing);
         }
+    }
 
-        return instances;
+    /**
+     * @param value the Weka value of a nominal attribute
+     * @param handleMissing {@code true} if a missing value should become -1
+     * @return the JSAT category of the value
+     */
+    private static int nominalValue(double value, boolean handleMissing)
+    {
+        if(handleMissing && Instance.isMissingValue(value))
+            return -1;
+        return (int) value;
+    }
+
+    /**
+     * @param catVal the JSAT category of a nominal feature
+     * @return the Weka value of the category, with negative categories
+     * becoming missing values
+     */
+    private static double wekaNominalValue(int catVal)
+    {
+        return catVal < 0 ? Instance.missingValue() : catVal;
+    }
+
+    /**
+     * Copies the values of a dense instance into a new dense vector, with the
+     * class value spliced out.
+     * @param instance the dense instance with only numeric attributes
+     * @param classIndex the index of the class attribute, or -1 if there is none
+     * @return the dense vector of the numeric values
+     */
+    private static DenseVector denseNumericValues(Instance instance, int classIndex)
+    {
+        double[] attValues = instance.toDoubleArray();//this is already a copy
+        if(classIndex < 0)
+            return new DenseVector(attValues);
+        double[] numericValues = new double[attValues.length-1];
+        System.arraycopy(attValues, 0, numericValues, 0, classIndex);
+        System.arraycopy(attValues, classIndex+1, numericValues, classIndex, numericValues.length-classIndex);
+        return new DenseVector(numericValues);
+    }
+
+    /**
+     * Copies all the values of a dense vector into an array
+     * @param vec the vector to copy from
+     * @param dest the array to copy into
+     * @param pos the position in the array to start copying to
+     */
+    private static void copyDense(DenseVector vec, double[] dest, int pos)
+    {
+        for(int i = 0; i < vec.length(); i++)
+            dest[pos+i] = vec.get(i);
+    }
+
+    /**
+     * Gathers the statistics of every numeric attribute other than the class.
+     * When the schema handles missing values, instances with a missing class
+     * are skipped, as they will not be converted.
+     * @param instances the instances to gather statistics from
+     * @param schema the schema of the instances
+     * @return the statistics of each numeric attribute, in order
+     */
+    private static ColumnStatistics[] gatherStatistics(Instances instances, Schema schema)
+    {
+        ColumnStatistics[] stats = new ColumnStatistics[schema.numNumeric];
+        for(int j = 0; j < stats.length; j++)
+            stats[j] = new ColumnStatistics();
+
+        long rows = 0;
+        for(int i = 0; i < instances.numInstances(); i++)
+        {
+            Instance instance = instances.instance(i);
+            if(schema.handleMissing && schema.classIndex >= 0 && instance.classIsMissing())
+                continue;
+            rows++;
+            for(int k = 0; k < instance.numValues(); k++)//only the stored values for sparse instances
+            {
+                int j = instance.index(k);
+                if(schema.kinds[j] == Schema.NUMERIC)
+                    stats[schema.columns[j]].add(instance.valueSparse(k));
+            }
+        }
+        for(ColumnStatistics stat : stats)//account for zeros sparse instances left out
+            stat.addRepeated(0.0, rows - stat.getObservations());
+        return stats;
+    }
+
+    /**
+     * Gathers the statistics of every numeric feature
+     * @param dataSet the dataset to gather statistics from
+     * @return the statistics of each numeric feature, in order
+     */
+    private static ColumnStatistics[] gatherStatistics(DataSet dataSet)
+    {
+        ColumnStatistics[] stats = new ColumnStatistics[dataSet.getNumNumericalVars()];
+        for(int j = 0; j < stats.length; j++)
+            stats[j] = new ColumnStatistics();
+
+        for(int i = 0; i < dataSet.getSampleSize(); i++)
+            for(IndexValue iv : dataSet.getDataPoint(i).getNumericalValues())//only non-zeros for sparse vectors
+                stats[iv.getIndex()].add(iv.getValue());
+        for(ColumnStatistics stat : stats)//account for zeros sparse vectors left out
+            stat.addRepeated(0.0, dataSet.getSampleSize() - stat.getObservations());
+        return stats;
     }
 
     /**
@@ -302,6 +704,102 @@ public class InstanceHandler
         return catAtt;
     }
 
+    /**
+     * The types of every attribute of a Weka dataset, and the JSAT
+     * categorical information for its nominal attributes.
+     */
+    static class Schema
+    {
+        static final byte IGNORED = 0;
+        static final byte NUMERIC = 1;
+        static final byte NOMINAL = 2;
+
+        final int classIndex;
+        /**
+         * The kind of each attribute, with the class attribute and
+         * unsupported types marked as ignored
+         */
+        final byte[] kinds;
+        /**
+         * The position of each attribute among the numeric or nominal
+         * features of a data point, as given by its kind
+         */
+        final int[] columns;
+        final int numNumeric;
+        final CategoricalData[] catInfo;
+        final boolean allNumeric;
+        /**
+         * Whether missing nominal values become the category -1
+         */
+        final boolean handleMissing;
+
+        public Schema(Instances header)
+        {
+            this(header, false);
+        }
+
+        public Schema(Instances header, boolean handleMissing)
+        {
+            this.handleMissing = handleMissing;
+            classIndex = header.classIndex();
+            kinds = new byte[header.numAttributes()];
+            columns = new int[kinds.length];
+            int numeric = 0, nominal = 0;
+            for (int i = 0; i < kinds.length; i++)
+            {
+                kinds[i] = kindOf(header, i);
+                if (kinds[i] == NUMERIC)
+                    columns[i] = numeric++;
+                else if (kinds[i] == NOMINAL)
+                    columns[i] = nominal++;
+            }
+
+            numNumeric = numeric;
+            catInfo = new CategoricalData[nominal];
+            int nominalPos = 0;
+            for (int i = 0; i < kinds.length; i++)
+                if (kinds[i] == NOMINAL)
+                    catInfo[nominalPos++] = new CategoricalData(header.attribute(i).numValues());
+            allNumeric = numeric == kinds.length - (classIndex >= 0 ? 1 : 0);
+        }
+
+        /**
+         * Checks if this schema can be reused for the given header, by
+         * comparing the type of every attribute and the number of values of
+         * every nominal attribute. Weka headers can be edited in place, so the
+         * identity of the header is not enough. Any header with the same
+         * layout matches, even if it is a different object.
+         * @param header the header of the instances about to be converted
+         * @param handleMissing whether missing values should be handled
+         * @return {@code true} if this schema describes the header
+         */
+        boolean matches(Instances header, boolean handleMissing)
+        {
+            if (this.handleMissing != handleMissing || classIndex != header.classIndex() || kinds.length != header.numAttributes())
+                return false;
+            for (int i = 0; i < kinds.length; i++)
+                if (kinds[i] != kindOf(header, i))
+                    return false;
+                else if (kinds[i] == NOMINAL && catInfo[columns[i]].getNumOfCategories() != header.attribute(i).numValues())
+                    return false;
+            return true;
+        }
+
+        /**
+         * @return the kind of the given attribute of the header
+         */
+        private static byte kindOf(Instances header, int i)
+        {
+            if (i == header.classIndex())
+                return IGNORED;
+            else if (header.attribute(i).isNumeric())
+                return NUMERIC;
+            else if (header.attribute(i).isNominal())
+                return NOMINAL;
+            return IGNORED;
+        }
+    }
+
     /**
      * Helper method that converts a CategoricalData object into a Weka
      * Attribute object with the same name.
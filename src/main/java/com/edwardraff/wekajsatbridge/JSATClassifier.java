@@ -18,8 +18,16 @@ package com.edwardraff.wekajsatbridge;
  */
 
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import jsat.classifiers.CategoricalResults;
 import jsat.classifiers.ClassificationDataSet;
+import jsat.classifiers.DataPoint;
+import jsat.utils.SystemInfo;
 import weka.core.Capabilities;
 import weka.core.Capabilities.Capability;
 import weka.core.Instance;
@@ -33,6 +41,27 @@ import weka.core.Instances;
 public class JSATClassifier extends weka.classifiers.Classifier
 {
     private jsat.classifiers.Classifier classifier;
+    /**
+     * The most bytes converting a training set may use, zero for no limit
+     */
+    private long memoryBudget = 0;
+    /**
+     * Whether missing nominal values are given to JSAT as the category -1
+     */
+    private boolean handleMissing = false;
+    /**
+     * The schema of the last dataset whose instances were classified, reused
+     * while instances keep coming from headers with the same layout
+     */
+    private transient volatile InstanceHandler.Schema lastSchema;
+    /**
+     * Optional cache of converted training data, shared with copies
+     */
+    private transient ConversionCache conversionCache;
+    /**
+     * Optional cache of recent predictions, cleared whenever the model is trained
+     */
+    private transient PredictionCache<double[]> predictionCache;
 
     /**
      * Creates a new Weka Classifier object that calls the given JSAT classifier
@@ -46,21 +75,247 @@ public class JSATClassifier extends weka.classifiers.Classifier
     @Override
     public void buildClassifier(Instances data) throws Exception
     {
-        ClassificationDataSet cds = (ClassificationDataSet) InstanceHandler.instancesToDataSet(data);
+        ClassificationDataSet cds;
+        if(conversionCache != null)//the budget is only checked if the cache has to convert
+            cds = (ClassificationDataSet) conversionCache.toDataSet(data, handleMissing, memoryBudget);
+        else
+        {
+            MemoryEstimate estimate = MemoryEstimate.ofDataSet(data);
+            estimate.checkBudget(memoryBudget);
+            cds = (ClassificationDataSet) InstanceHandler.instancesToDataSet(data, null, estimate.getCheapest(), handleMissing);
+        }
         classifier.trainC(cds);
+        if(predictionCache != null)
+            predictionCache.clear();
     }
 
     @Override
     public double[] distributionForInstance(Instance instance) throws Exception
     {
-        CategoricalResults results = classifier.classify(InstanceHandler.instanceToDataPoint(instance));
-        //TODO should add support in JSAT to get the backing double array to avoid having to make a new one like this
-        double[] dist = new double[results.size()];
-        for(int i = 0; i < dist.length; i++)
-            dist[i] = results.getProb(i);
+        return distributionForInstance(instance, schemaFor(instance.dataset()));
+    }
+
+    /**
+     * Computes the class distributions of every instance in the dataset.
+     * @param instances the instances to classify
+     * @return the class distribution of each instance, in order
+     * @throws Exception if an instance could not be classified
+     */
+    public double[][] distributionsForInstances(Instances instances) throws Exception
+    {
+        return distributionsForInstances(instances, null);
+    }
+
+    /**
+     * Computes the class distributions of every instance in the dataset,
+     * sharing the work among threads.
+     * @param instances the instances to classify
+     * @param threadPool the source of threads to use, or {@code null} to
+     * classify everything in the calling thread
+     * @return the class distribution of each instance, in order
+     * @throws Exception if an instance could not be classified
+     */
+    public double[][] distributionsForInstances(Instances instances, ExecutorService threadPool) throws Exception
+    {
+        Instance[] array = new Instance[instances.numInstances()];
+        for(int i = 0; i < array.length; i++)
+            array[i] = instances.instance(i);
+        return distributionsForInstances(array, threadPool);
+    }
+
+    /**
+     * Computes the class distributions of every given instance, sharing the
+     * work among threads. All instances are converted against the attribute
+     * types of the first instance's dataset, which are only checked once.
+     * @param instances the instances to classify, which must all have the
+     * same attributes
+     * @param threadPool the source of threads to use, or {@code null} to
+     * classify everything in the calling thread
+     * @return the class distribution of each instance, in order
+     * @throws Exception if an instance could not be classified
+     */
+    public double[][] distributionsForInstances(final Instance[] instances, ExecutorService threadPool) throws Exception
+    {
+        final double[][] dists = new double[instances.length][];
+        if(instances.length == 0)
+            return dists;
+        final InstanceHandler.Schema schema = schemaFor(instances[0].dataset());
+        if(threadPool == null)
+        {
+            for(int i = 0; i < instances.length; i++)
+                dists[i] = distributionForInstance(instances[i], schema);
+            return dists;
+        }
+
+        int blocks = Math.min(SystemInfo.LogicalCores, instances.length);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(blocks);
+        for(int b = 0; b < blocks; b++)
+        {
+            final int from = (int) ((long) instances.length * b / blocks);
+            final int to = (int) ((long) instances.length * (b + 1) / blocks);
+            tasks.add(new Callable<Void>()
+            {
+                @Override
+                public Void call() throws Exception
+                {
+                    for(int i = from; i < to; i++)
+                        dists[i] = distributionForInstance(instances[i], schema);
+                    return null;
+                }
+            });
+        }
+        try
+        {
+            for(Future<Void> future : threadPool.invokeAll(tasks))
+                future.get();
+        }
+        catch (ExecutionException ex)
+        {
+            if(ex.getCause() instanceof Exception)
+                throw (Exception) ex.getCause();
+            throw ex;
+        }
+        return dists;
+    }
+
+    /**
+     * Computes the class distribution of one instance
+     * @param instance the instance to classify
+     * @param schema the schema of the instance's dataset, or {@code null} if
+     * the instance has no dataset
+     * @return the class distribution of the instance
+     */
+    private double[] distributionForInstance(Instance instance, InstanceHandler.Schema schema)
+    {
+        PredictionCache<double[]> cache = predictionCache;
+        PredictionCache.Key key = null;
+        if(cache != null)
+        {
+            key = PredictionCache.Key.of(instance);
+            double[] cached = cache.get(key);
+            if(cached != null)
+                return cached.clone();
+        }
+        DataPoint dp;
+        if(schema == null)
+            dp = InstanceHandler.instanceToDataPoint(instance);
+        else
+            dp = InstanceHandler.instanceToDataPoint(instance, schema);
+        CategoricalResults results = classifier.classify(dp);
+        //JSAT allocates its own results, so copy them into the output row in one go
+        double[] dist = results.getVecView().arrayCopy();
+        if(cache != null)
+            cache.put(key, dist.clone());
         return dist;
     }
 
+    /**
+     * Returns the schema of the given header, reusing the last one when the
+     * header still has the same layout. Checking the layout reads every
+     * attribute, but allocates nothing
+     * @param header the dataset of the instances to convert, may be {@code null}
+     * @return the schema of the header, or {@code null} if there is no header
+     */
+    private InstanceHandler.Schema schemaFor(Instances header)
+    {
+        if(header == null)
+            return null;
+        InstanceHandler.Schema schema = lastSchema;
+        if(schema == null || !schema.matches(header, handleMissing))
+            lastSchema = schema = new InstanceHandler.Schema(header, handleMissing);
+        return schema;
+    }
+
+    /**
+     * Sets the cache used to reuse the distributions of inputs that were seen
+     * recently. The cache is emptied whenever this model is trained, and is
+     * not shared with copies of this object.
+     * @param predictionCache the cache to use, or {@code null} to always
+     * compute distributions
+     */
+    public void setPredictionCache(PredictionCache<double[]> predictionCache)
+    {
+        this.predictionCache = predictionCache;
+    }
+
+    /**
+     * @return the cache of recent distributions, or {@code null} if none is used
+     */
+    public PredictionCache<double[]> getPredictionCache()
+    {
+        return predictionCache;
+    }
+
+    /**
+     * Sets the most memory that converting a training set may use. Before
+     * converting, the size of the converted dataset is estimated for both
+     * dense and sparse vectors, and the cheaper one is used. If even that
+     * would exceed the budget, training fails before anything is converted.
+     * Training sets already held by the conversion cache are not checked.
+     * @param memoryBudget the most bytes a conversion may use, or zero for no
+     * limit
+     * @see MemoryEstimate
+     */
+    public void setMemoryBudget(long memoryBudget)
+    {
+        if(memoryBudget < 0)
+            throw new IllegalArgumentException("memory budget must be non-negative, not " + memoryBudget);
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * @return the most bytes converting a training set may use, or zero if
+     * there is no limit
+     */
+    public long getMemoryBudget()
+    {
+        return memoryBudget;
+    }
+
+    /**
+     * Sets whether missing values are passed on to the JSAT classifier. When
+     * enabled, missing nominal values become the category -1 and training
+     * instances with a missing class are left out, which the JSAT classifier must
+     * be able to handle. Otherwise missing nominal values are treated as the
+     * first category. Missing numeric values are NaN either way.
+     * @param handleMissing {@code true} to pass on missing values
+     */
+    public void setHandleMissing(boolean handleMissing)
+    {
+        this.handleMissing = handleMissing;
+        if(predictionCache != null)
+            predictionCache.clear();
+    }
+
+    /**
+     * @return {@code true} if missing values are passed on to the JSAT classifier
+     */
+    public boolean isHandleMissing()
+    {
+        return handleMissing;
+    }
+
+    /**
+     * Sets the cache used to convert training data to JSAT's format. Sharing
+     * one cache between wrappers that are trained on the same Instances
+     * means they are only converted once.
+     * @param conversionCache the cache to use, or {@code null} to always
+     * convert the training data
+     */
+    public void setConversionCache(ConversionCache conversionCache)
+    {
+        this.conversionCache = conversionCache;
+    }
+
+    /**
+     * @return the cache used to convert training data, or {@code null} if
+     * none is used
+     */
+    public ConversionCache getConversionCache()
+    {
+        return conversionCache;
+    }
+
     @Override
     public Capabilities getCapabilities()
     {
@@ -68,6 +323,11 @@ public class JSATClassifier extends weka.classifiers.Classifier
         //TODO a better way to do this? Not all JSAT methods will support both
         capabilities.enable(Capability.NOMINAL_ATTRIBUTES);
         capabilities.enable(Capability.NUMERIC_ATTRIBUTES);
+        if(handleMissing)
+        {
+            capabilities.enable(Capability.MISSING_VALUES);
+            capabilities.enable(Capability.MISSING_CLASS_VALUES);
+        }
 
         capabilities.enable(Capability.NOMINAL_CLASS);
 
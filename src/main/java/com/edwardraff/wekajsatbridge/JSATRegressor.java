@@ -18,8 +18,16 @@ package com.edwardraff.wekajsatbridge;
  */
 
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import jsat.classifiers.DataPoint;
 import jsat.regression.RegressionDataSet;
 import jsat.regression.Regressor;
+import jsat.utils.SystemInfo;
 import weka.core.Capabilities;
 import weka.core.Capabilities.Capability;
 import weka.core.Instance;
@@ -33,6 +41,27 @@ import weka.core.Instances;
 public class JSATRegressor extends weka.classifiers.Classifier
 {
     Regressor regressor;
+    /**
+     * The most bytes converting a training set may use, zero for no limit
+     */
+    private long memoryBudget = 0;
+    /**
+     * Whether missing nominal values are given to JSAT as the category -1
+     */
+    private boolean handleMissing = false;
+    /**
+     * The schema of the last dataset whose instances were predicted, reused
+     * while instances keep coming from headers with the same layout
+     */
+    private transient volatile InstanceHandler.Schema lastSchema;
+    /**
+     * Optional cache of converted training data, shared with copies
+     */
+    private transient ConversionCache conversionCache;
+    /**
+     * Optional cache of recent predictions, cleared whenever the model is trained
+     */
+    private transient PredictionCache<Double> predictionCache;
 
     /**
      * Creates a new Weka Classifier object for regression problems from the 
@@ -47,14 +76,243 @@ public class JSATRegressor extends weka.classifiers.Classifier
     @Override
     public void buildClassifier(Instances data) throws Exception
     {
-        RegressionDataSet rds = (RegressionDataSet) InstanceHandler.instancesToDataSet(data);
+        RegressionDataSet rds;
+        if(conversionCache != null)//the budget is only checked if the cache has to convert
+            rds = (RegressionDataSet) conversionCache.toDataSet(data, handleMissing, memoryBudget);
+        else
+        {
+            MemoryEstimate estimate = MemoryEstimate.ofDataSet(data);
+            estimate.checkBudget(memoryBudget);
+            rds = (RegressionDataSet) InstanceHandler.instancesToDataSet(data, null, estimate.getCheapest(), handleMissing);
+        }
         regressor.train(rds);
+        if(predictionCache != null)
+            predictionCache.clear();
     }
 
     @Override
     public double classifyInstance(Instance instance) throws Exception
     {
-        return regressor.regress(InstanceHandler.instanceToDataPoint(instance));
+        return classifyInstance(instance, schemaFor(instance.dataset()));
+    }
+
+    /**
+     * Predicts the target value of every instance in the dataset.
+     * @param instances the instances to predict
+     * @return the prediction for each instance, in order
+     * @throws Exception if an instance could not be predicted
+     */
+    public double[] classifyInstances(Instances instances) throws Exception
+    {
+        return classifyInstances(instances, null);
+    }
+
+    /**
+     * Predicts the target value of every instance in the dataset, sharing the
+     * work among threads.
+     * @param instances the instances to predict
+     * @param threadPool the source of threads to use, or {@code null} to
+     * predict everything in the calling thread
+     * @return the prediction for each instance, in order
+     * @throws Exception if an instance could not be predicted
+     */
+    public double[] classifyInstances(Instances instances, ExecutorService threadPool) throws Exception
+    {
+        Instance[] array = new Instance[instances.numInstances()];
+        for(int i = 0; i < array.length; i++)
+            array[i] = instances.instance(i);
+        return classifyInstances(array, threadPool);
+    }
+
+    /**
+     * Predicts the target value of every given instance, sharing the work
+     * among threads. All instances are converted against the attribute types
+     * of the first instance's dataset, which are only checked once.
+     * @param instances the instances to predict, which must all have the same
+     * attributes
+     * @param threadPool the source of threads to use, or {@code null} to
+     * predict everything in the calling thread
+     * @return the prediction for each instance, in order
+     * @throws Exception if an instance could not be predicted
+     */
+    public double[] classifyInstances(final Instance[] instances, ExecutorService threadPool) throws Exception
+    {
+        final double[] predictions = new double[instances.length];
+        if(instances.length == 0)
+            return predictions;
+        final InstanceHandler.Schema schema = schemaFor(instances[0].dataset());
+        if(threadPool == null)
+        {
+            for(int i = 0; i < instances.length; i++)
+                predictions[i] = classifyInstance(instances[i], schema);
+            return predictions;
+        }
+
+        int blocks = Math.min(SystemInfo.LogicalCores, instances.length);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(blocks);
+        for(int b = 0; b < blocks; b++)
+        {
+            final int from = (int) ((long) instances.length * b / blocks);
+            final int to = (int) ((long) instances.length * (b + 1) / blocks);
+            tasks.add(new Callable<Void>()
+            {
+                @Override
+                public Void call() throws Exception
+                {
+                    for(int i = from; i < to; i++)
+                        predictions[i] = classifyInstance(instances[i], schema);
+                    return null;
+                }
+            });
+        }
+        try
+        {
+            for(Future<Void> future : threadPool.invokeAll(tasks))
+                future.get();
+        }
+        catch (ExecutionException ex)
+        {
+            if(ex.getCause() instanceof Exception)
+                throw (Exception) ex.getCause();
+            throw ex;
+        }
+        return predictions;
+    }
+
+    /**
+     * Predicts the target value of one instance
+     * @param instance the instance to predict
+     * @param schema the schema of the instance's dataset, or {@code null} if
+     * the instance has no dataset
+     * @return the prediction for the instance
+     */
+    private double classifyInstance(Instance instance, InstanceHandler.Schema schema)
+    {
+        PredictionCache<Double> cache = predictionCache;
+        PredictionCache.Key key = null;
+        if(cache != null)
+        {
+            key = PredictionCache.Key.of(instance);
+            Double cached = cache.get(key);
+            if(cached != null)
+                return cached;
+        }
+        DataPoint dp;
+        if(schema == null)
+            dp = InstanceHandler.instanceToDataPoint(instance);
+        else
+            dp = InstanceHandler.instanceToDataPoint(instance, schema);
+        double prediction = regressor.regress(dp);
+        if(cache != null)
+            cache.put(key, prediction);
+        return prediction;
+    }
+
+    /**
+     * Returns the schema of the given header, reusing the last one when the
+     * header still has the same layout. Checking the layout reads every
+     * attribute, but allocates nothing
+     * @param header the dataset of the instances to convert, may be {@code null}
+     * @return the schema of the header, or {@code null} if there is no header
+     */
+    private InstanceHandler.Schema schemaFor(Instances header)
+    {
+        if(header == null)
+            return null;
+        InstanceHandler.Schema schema = lastSchema;
+        if(schema == null || !schema.matches(header, handleMissing))
+            lastSchema = schema = new InstanceHandler.Schema(header, handleMissing);
+        return schema;
+    }
+
+    /**
+     * Sets the cache used to reuse the predictions of inputs that were seen
+     * recently. The cache is emptied whenever this model is trained, and is
+     * not shared with copies of this object.
+     * @param predictionCache the cache to use, or {@code null} to always
+     * compute predictions
+     */
+    public void setPredictionCache(PredictionCache<Double> predictionCache)
+    {
+        this.predictionCache = predictionCache;
+    }
+
+    /**
+     * @return the cache of recent predictions, or {@code null} if none is used
+     */
+    public PredictionCache<Double> getPredictionCache()
+    {
+        return predictionCache;
+    }
+
+    /**
+     * Sets the most memory that converting a training set may use. Before
+     * converting, the size of the converted dataset is estimated for both
+     * dense and sparse vectors, and the cheaper one is used. If even that
+     * would exceed the budget, training fails before anything is converted.
+     * Training sets already held by the conversion cache are not checked.
+     * @param memoryBudget the most bytes a conversion may use, or zero for no
+     * limit
+     * @see MemoryEstimate
+     */
+    public void setMemoryBudget(long memoryBudget)
+    {
+        if(memoryBudget < 0)
+            throw new IllegalArgumentException("memory budget must be non-negative, not " + memoryBudget);
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * @return the most bytes converting a training set may use, or zero if
+     * there is no limit
+     */
+    public long getMemoryBudget()
+    {
+        return memoryBudget;
+    }
+
+    /**
+     * Sets whether missing values are passed on to the JSAT regressor. When
+     * enabled, missing nominal values become the category -1 and training
+     * instances with a missing class are left out, which the JSAT regressor
+     * must be able to handle. Otherwise missing nominal values are treated as the
+     * first category. Missing numeric values are NaN either way.
+     * @param handleMissing {@code true} to pass on missing values
+     */
+    public void setHandleMissing(boolean handleMissing)
+    {
+        this.handleMissing = handleMissing;
+        if(predictionCache != null)
+            predictionCache.clear();
+    }
+
+    /**
+     * @return {@code true} if missing values are passed on to the JSAT regressor
+     */
+    public boolean isHandleMissing()
+    {
+        return handleMissing;
+    }
+
+    /**
+     * Sets the cache used to convert training data to JSAT's format. Sharing
+     * one cache between wrappers that are trained on the same Instances
+     * means they are only converted once.
+     * @param conversionCache the cache to use, or {@code null} to always
+     * convert the training data
+     */
+    public void setConversionCache(ConversionCache conversionCache)
+    {
+        this.conversionCache = conversionCache;
+    }
+
+    /**
+     * @return the cache used to convert training data, or {@code null} if
+     * none is used
+     */
+    public ConversionCache getConversionCache()
+    {
+        return conversionCache;
     }
 
     @Override
@@ -64,6 +322,11 @@ public class JSATRegressor extends weka.classifiers.Classifier
         //TODO a better way to do this? Not all JSAT methods will support both
         capabilities.enable(Capability.NOMINAL_ATTRIBUTES);
         capabilities.enable(Capability.NUMERIC_ATTRIBUTES);
+        if(handleMissing)
+        {
+            capabilities.enable(Capability.MISSING_VALUES);
+            capabilities.enable(Capability.MISSING_CLASS_VALUES);
+        }
 
         capabilities.enable(Capability.NOMINAL_CLASS);
 
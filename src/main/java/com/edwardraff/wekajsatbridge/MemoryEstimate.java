@@ -0,0 +1,197 @@
+package com.edwardraff.wekajsatbridge;
+
+/*
+ * Copyright (C) 2014 Edward Raff
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import jsat.DataSet;
+import jsat.classifiers.ClassificationDataSet;
+import jsat.regression.RegressionDataSet;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+
+/**
+ * An estimate of the heap memory a conversion by {@link InstanceHandler} will
+ * allocate, for both dense and sparse representations of the result. The
+ * number of non-zero values is measured on a sample of at most
+ * {@link #SAMPLE_SIZE} rows spread evenly over the source, so estimating is
+ * cheap even for very large datasets. <br>
+ * <br>
+ * The per-row overheads assume a 64 bit JVM with compressed pointers, and are
+ * meant for choosing a representation and catching conversions that can not
+ * fit, not for exact accounting.
+ *
+ * @author Edward Raff
+ */
+public class MemoryEstimate
+{
+    /**
+     * The maximum number of rows inspected to estimate sparsity
+     */
+    public static final int SAMPLE_SIZE = 1000;
+
+    /**
+     * The ways the rows of a converted dataset can be stored
+     */
+    public enum Representation
+    {
+        /**
+         * Every value of a row is stored
+         */
+        DENSE,
+        /**
+         * Only the non-zero values of a row are stored, along with their indices
+         */
+        SPARSE
+    }
+
+    private final long denseBytes;
+    private final long sparseBytes;
+
+    private MemoryEstimate(long denseBytes, long sparseBytes)
+    {
+        this.denseBytes = denseBytes;
+        this.sparseBytes = sparseBytes;
+    }
+
+    /**
+     * Estimates the memory needed to convert a JSAT dataset into Weka
+     * Instances with {@link InstanceHandler#dataSetToInstances(jsat.DataSet) }
+     * @param dataSet the dataset that will be converted
+     * @return the estimated size of the converted dataset
+     */
+    public static MemoryEstimate ofInstances(DataSet dataSet)
+    {
+        int n = dataSet.getSampleSize();
+        boolean hasTarget = dataSet instanceof ClassificationDataSet || dataSet instanceof RegressionDataSet;
+        int numAttributes = dataSet.getNumCategoricalVars() + dataSet.getNumNumericalVars() + (hasTarget ? 1 : 0);
+
+        int stride = Math.max(1, n / SAMPLE_SIZE);
+        long sampled = 0, storedValues = 0;
+        for(int i = 0; i < n; i += stride)
+        {
+            storedValues += dataSet.getDataPoint(i).getNumericalValues().nnz();
+            sampled++;
+        }
+        double avgStored = dataSet.getNumCategoricalVars() + (hasTarget ? 1 : 0);
+        if(sampled > 0)
+            avgStored += storedValues / (double) sampled;
+
+        //Instance object, its reference in the dataset, and a double array of every attribute
+        long dense = n * (56L + 8L * numAttributes);
+        //SparseInstance object, its reference, and double and int arrays of the stored values
+        long sparse = n * (80L + (long) Math.ceil(12 * avgStored));
+        return new MemoryEstimate(dense, sparse);
+    }
+
+    /**
+     * Estimates the memory needed to convert Weka Instances into a JSAT
+     * dataset with {@link InstanceHandler#instancesToDataSet(weka.core.Instances) }
+     * @param instances the instances that will be converted
+     * @return the estimated size of the converted dataset
+     */
+    public static MemoryEstimate ofDataSet(Instances instances)
+    {
+        int n = instances.numInstances();
+        int classIndex = instances.classIndex();
+        int numNumeric = 0, numNominal = 0;
+        for(int j = 0; j < instances.numAttributes(); j++)
+            if(j == classIndex)
+                continue;
+            else if(instances.attribute(j).isNumeric())
+                numNumeric++;
+            else if(instances.attribute(j).isNominal())
+                numNominal++;
+
+        int stride = Math.max(1, n / SAMPLE_SIZE);
+        long sampled = 0, nonZeros = 0;
+        for(int i = 0; i < n; i += stride)
+        {
+            Instance instance = instances.instance(i);
+            for(int k = 0; k < instance.numValues(); k++)//only the stored values for sparse instances
+            {
+                int j = instance.index(k);
+                if(j != classIndex && instances.attribute(j).isNumeric() && instance.valueSparse(k) != 0)
+                    nonZeros++;
+            }
+            sampled++;
+        }
+        double avgNonZeros = sampled > 0 ? nonZeros / (double) sampled : 0;
+
+        //DataPoint, its int array of nominal values, its target and its reference in the dataset
+        long perRow = 96L + 4L * numNominal;
+        //DenseVector and its double array
+        long dense = n * (perRow + 40L + 8L * numNumeric);
+        //SparseVector and its int and double arrays
+        long sparse = n * (perRow + 72L + (long) Math.ceil(12 * avgNonZeros));
+        return new MemoryEstimate(dense, sparse);
+    }
+
+    /**
+     * @return the estimated bytes if every row is stored densely
+     */
+    public long getDenseBytes()
+    {
+        return denseBytes;
+    }
+
+    /**
+     * @return the estimated bytes if every row is stored sparsely
+     */
+    public long getSparseBytes()
+    {
+        return sparseBytes;
+    }
+
+    /**
+     * @param representation the representation of the converted rows
+     * @return the estimated bytes of the converted dataset
+     */
+    public long getBytes(Representation representation)
+    {
+        return representation == Representation.SPARSE ? sparseBytes : denseBytes;
+    }
+
+    /**
+     * @return the representation that needs the least memory, preferring
+     * dense when they are equal
+     */
+    public Representation getCheapest()
+    {
+        return sparseBytes < denseBytes ? Representation.SPARSE : Representation.DENSE;
+    }
+
+    /**
+     * Checks that the cheapest representation fits in the given budget
+     * @param memoryBudget the most bytes the conversion may use, or zero or
+     * less for no limit
+     * @throws IllegalStateException if the conversion would not fit
+     */
+    public void checkBudget(long memoryBudget)
+    {
+        long bytes = getBytes(getCheapest());
+        if(memoryBudget > 0 && bytes > memoryBudget)
+            throw new IllegalStateException("Converting the dataset needs an estimated " + bytes + " bytes, which exceeds the memory budget of " + memoryBudget + " bytes");
+    }
+
+    @Override
+    public String toString()
+    {
+        return "MemoryEstimate{dense=" + denseBytes + ", sparse=" + sparseBytes + "}";
+    }
+}
@@ -0,0 +1,329 @@
+package com.edwardraff.wekajsatbridge;
+
+/*
+ * Copyright (C) 2014 Edward Raff
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import jsat.classifiers.CategoricalData;
+import jsat.exceptions.UntrainedModelException;
+import weka.core.Instances;
+
+/**
+ * Saves and loads trained {@link WekaClassifier} and {@link WekaRegressor}
+ * wrappers as self describing bundles. A bundle holds a version number, the
+ * layout of the JSAT data points the model expects, the Weka dataset header,
+ * and the serialized Weka model. <br>
+ * <br>
+ * A bundle is written to a temporary file next to its destination and then
+ * moved into place atomically, so a reader never sees a partly written
+ * bundle, and a failed save leaves any existing bundle untouched. <br>
+ * <br>
+ * Loading reads the whole file in one go. The Weka model can be left
+ * serialized until the first prediction, so a service can start
+ * quickly and only pay for deserializing the models it uses. The expected
+ * data point layout can be checked against the bundle once at load time,
+ * rather than finding a mismatch at prediction time.
+ *
+ * @author Edward Raff
+ */
+public class ModelBundle
+{
+    /**
+     * "WJBB", marks the start of every bundle
+     */
+    private static final int MAGIC = 0x574A4242;
+    private static final int VERSION = 1;
+    private static final byte KIND_CLASSIFIER = 0;
+    private static final byte KIND_REGRESSOR = 1;
+
+    /**
+     * Saves a trained classifier as a bundle
+     * @param classifier the trained classifier to save
+     * @param path the file to write the bundle to, which will be replaced if
+     * it exists
+     * @throws IOException if the bundle could not be written
+     * @throws UntrainedModelException if the classifier has not been trained
+     */
+    public static void save(WekaClassifier classifier, Path path) throws IOException
+    {
+        Instances header = classifier.getWekaDataSet();
+        checkTrained(header);
+        write(path, KIND_CLASSIFIER, header, classifier.getNumCategories(), classifier.getSerializedModel());
+    }
+
+    /**
+     * Saves a trained regressor as a bundle
+     * @param regressor the trained regressor to save
+     * @param path the file to write the bundle to, which will be replaced if
+     * it exists
+     * @throws IOException if the bundle could not be written
+     * @throws UntrainedModelException if the regressor has not been trained
+     */
+    public static void save(WekaRegressor regressor, Path path) throws IOException
+    {
+        Instances header = regressor.getWekaDataSet();
+        checkTrained(header);
+        write(path, KIND_REGRESSOR, header, 0, regressor.getSerializedModel());
+    }
+
+    /**
+     * Loads a classifier from a bundle. The Weka model is deserialized when
+     * the classifier is first used.
+     * @param path the bundle to load
+     * @return the trained classifier
+     * @throws IOException if the bundle could not be read, or is not a
+     * classifier bundle
+     */
+    public static WekaClassifier loadClassifier(Path path) throws IOException
+    {
+        return loadClassifier(path, null, -1, true);
+    }
+
+    /**
+     * Loads a classifier from a bundle, checking that it expects data points
+     * with the given layout
+     * @param path the bundle to load
+     * @param categories the categorical features of the data points that will
+     * be classified, or {@code null} to skip checking the layout
+     * @param numNumerical the number of numeric features of the data points
+     * that will be classified
+     * @param lazy {@code true} to deserialize the Weka model when it is first
+     * used, or {@code false} to deserialize it now
+     * @return the trained classifier
+     * @throws IOException if the bundle could not be read, or is not a
+     * classifier bundle
+     * @throws IllegalArgumentException if the bundle expects a different layout
+     */
+    public static WekaClassifier loadClassifier(Path path, CategoricalData[] categories, int numNumerical, boolean lazy) throws IOException
+    {
+        Bundle bundle = read(path, KIND_CLASSIFIER);
+        if(categories != null)
+            bundle.checkLayout(categories, numNumerical);
+        WekaClassifier classifier = new WekaClassifier(bundle.model, bundle.header, bundle.numCategories);
+        if(!lazy)
+            classifier.getWekaClassifier();
+        return classifier;
+    }
+
+    /**
+     * Loads a regressor from a bundle. The Weka model is deserialized when
+     * the regressor is first used.
+     * @param path the bundle to load
+     * @return the trained regressor
+     * @throws IOException if the bundle could not be read, or is not a
+     * regressor bundle
+     */
+    public static WekaRegressor loadRegressor(Path path) throws IOException
+    {
+        return loadRegressor(path, null, -1, true);
+    }
+
+    /**
+     * Loads a regressor from a bundle, checking that it expects data points
+     * with the given layout
+     * @param path the bundle to load
+     * @param categories the categorical features of the data points that will
+     * be regressed, or {@code null} to skip checking the layout
+     * @param numNumerical the number of numeric features of the data points
+     * that will be regressed
+     * @param lazy {@code true} to deserialize the Weka model when it is first
+     * used, or {@code false} to deserialize it now
+     * @return the trained regressor
+     * @throws IOException if the bundle could not be read, or is not a
+     * regressor bundle
+     * @throws IllegalArgumentException if the bundle expects a different layout
+     */
+    public static WekaRegressor loadRegressor(Path path, CategoricalData[] categories, int numNumerical, boolean lazy) throws IOException
+    {
+        Bundle bundle = read(path, KIND_REGRESSOR);
+        if(categories != null)
+            bundle.checkLayout(categories, numNumerical);
+        WekaRegressor regressor = new WekaRegressor(bundle.model, bundle.header);
+        if(!lazy)
+            regressor.getWekaClassifier();
+        return regressor;
+    }
+
+    /**
+     * Checks that a model was trained before it is serialized
+     * @param header the header of the model's training data
+     * @throws UntrainedModelException if there is no header
+     */
+    private static void checkTrained(Instances header)
+    {
+        if(header == null)
+            throw new UntrainedModelException("Only a trained model can be saved");
+    }
+
+    private static void write(Path path, byte kind, Instances header, int numCategories, byte[] model) throws IOException
+    {
+        int classIndex = header.classIndex();
+        int numNominal = 0, numNumeric = 0;
+        for(int i = 0; i < header.numAttributes(); i++)
+            if(i == classIndex)
+                continue;
+            else if(header.attribute(i).isNominal())
+                numNominal++;
+            else if(header.attribute(i).isNumeric())
+                numNumeric++;
+        byte[] headerBytes = OtherUtils.serialize(header);
+
+        //same directory, so the move is a rename on the same file system
+        Path tmp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+        try
+        {
+            writeBundle(tmp, kind, header, numNominal, numNumeric, numCategories, headerBytes, model);
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally
+        {
+            Files.deleteIfExists(tmp);//only still there if writing or moving failed
+        }
+    }
+
+    private static void writeBundle(Path path, byte kind, Instances header, int numNominal, int numNumeric, int numCategories, byte[] headerBytes, byte[] model) throws IOException
+    {
+        int classIndex = header.classIndex();
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16)))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeByte(kind);
+            //the layout of the JSAT data points, nominal attributes come first
+            out.writeInt(numNominal);
+            for(int i = 0; i < header.numAttributes(); i++)
+                if(i != classIndex && header.attribute(i).isNominal())
+                    out.writeInt(header.attribute(i).numValues());
+            out.writeInt(numNumeric);
+            out.writeInt(numCategories);
+
+            out.writeInt(headerBytes.length);
+            out.write(headerBytes);
+            out.writeInt(model.length);
+            out.write(model);
+            out.flush();
+            channel.force(false);//on disk before it replaces the old bundle
+        }
+    }
+
+    private static Bundle read(Path path, byte expectedKind) throws IOException
+    {
+        ByteBuffer buffer;
+        //every byte ends up on the heap anyway, so read it all rather than map it
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            if(size > Integer.MAX_VALUE)
+                throw new IOException(path + " is too large to be a model bundle");
+            buffer = ByteBuffer.allocate((int) size);
+            while(buffer.hasRemaining())
+                if(channel.read(buffer) < 0)
+                    throw new IOException(path + " was shortened while being read");
+            buffer.flip();
+        }
+
+        try
+        {
+            if(buffer.remaining() < 9 || buffer.getInt() != MAGIC)
+                throw new IOException(path + " is not a model bundle");
+            int version = buffer.getInt();
+            if(version != VERSION)
+                throw new IOException("Unsupported model bundle version " + version + ", expected " + VERSION);
+            byte kind = buffer.get();
+            if(kind != expectedKind)
+                throw new IOException(path + " does not hold a " + (expectedKind == KIND_CLASSIFIER ? "classifier" : "regressor"));
+
+            Bundle bundle = new Bundle();
+            bundle.categorySizes = new int[readLength(buffer, 4, path)];
+            for(int i = 0; i < bundle.categorySizes.length; i++)
+                bundle.categorySizes[i] = buffer.getInt();
+            bundle.numNumerical = buffer.getInt();
+            bundle.numCategories = buffer.getInt();
+
+            byte[] headerBytes = new byte[readLength(buffer, 1, path)];
+            buffer.get(headerBytes);
+            bundle.model = new byte[readLength(buffer, 1, path)];
+            buffer.get(bundle.model);
+            try
+            {
+                bundle.header = OtherUtils.deserialize(headerBytes);
+            }
+            catch (ClassNotFoundException | ClassCastException ex)
+            {
+                throw new IOException("The dataset header could not be loaded", ex);
+            }
+            return bundle;
+        }
+        catch (BufferUnderflowException ex)
+        {
+            throw new IOException(path + " is truncated", ex);
+        }
+    }
+
+    /**
+     * Reads the length of an array, checking that the bundle holds that much
+     * data after it
+     * @param buffer the bundle's contents
+     * @param elementSize the number of bytes of each element of the array
+     * @param path the bundle being read, for error messages
+     * @return the length of the array
+     * @throws IOException if the length is negative or runs past the end of
+     * the bundle
+     */
+    private static int readLength(ByteBuffer buffer, int elementSize, Path path) throws IOException
+    {
+        int length = buffer.getInt();
+        if(length < 0 || (long) length * elementSize > buffer.remaining())
+            throw new IOException(path + " is truncated or corrupt");
+        return length;
+    }
+
+    /**
+     * The contents of a bundle, with the model still serialized
+     */
+    private static class Bundle
+    {
+        int[] categorySizes;
+        int numNumerical;
+        int numCategories;
+        Instances header;
+        byte[] model;
+
+        void checkLayout(CategoricalData[] categories, int numNumerical)
+        {
+            if(categories.length != categorySizes.length)
+                throw new IllegalArgumentException("Model expects " + categorySizes.length + " categorical features, not " + categories.length);
+            for(int i = 0; i < categories.length; i++)
+                if(categories[i].getNumOfCategories() != categorySizes[i])
+                    throw new IllegalArgumentException("Model expects categorical feature " + i + " to have " + categorySizes[i] + " values, not " + categories[i].getNumOfCategories());
+            if(numNumerical != this.numNumerical)
+                throw new IllegalArgumentException("Model expects " + this.numNumerical + " numeric features, not " + numNumerical);
+        }
+    }
+}
@@ -56,4 +56,39 @@ public class OtherUtils
         }
         return null;
     }
+
+    /**
+     * Serializes the given object into a byte array
+     * @param obj the object to serialize
+     * @return the serialized form of the object
+     * @throws IOException if the object could not be serialized
+     */
+    public static byte[] serialize(Object obj) throws IOException
+    {
+        try(ByteArrayOutputStream bout = new ByteArrayOutputStream();
+                ObjectOutputStream oout = new ObjectOutputStream(bout))
+        {
+            oout.writeObject(obj);
+            oout.flush();
+            return bout.toByteArray();
+        }
+    }
+
+    /**
+     * Deserializes an object from a byte array created by
+     * {@link #serialize(java.lang.Object) }
+     * @param <T> the type of the object
+     * @param bytes the serialized form of the object
+     * @return the deserialized object
+     * @throws IOException if the bytes could not be read
+     * @throws ClassNotFoundException if the class of the object can not be found
+     */
+    public static <T> T deserialize(byte[] bytes) throws IOException, ClassNotFoundException
+    {
+        try(ByteArrayInputStream bin = new ByteArrayInputStream(bytes);
+                ObjectInputStream oin = new ObjectInputStream(bin))
+        {
+            return (T) oin.readObject();
+        }
+    }
 }
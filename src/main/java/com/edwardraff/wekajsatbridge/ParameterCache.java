@@ -0,0 +1,359 @@
+package com.edwardraff.wekajsatbridge;
+
+/*
+ * Copyright (C) 2014 Edward Raff
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import jsat.parameters.BooleanParameter;
+import jsat.parameters.DoubleParameter;
+import jsat.parameters.IntParameter;
+import jsat.parameters.Parameter;
+
+/**
+ * Holds the parameters of a single Weka object. Parameters are inferred from
+ * matching public get/set methods of double, int, or boolean values, the same
+ * way as {@link Parameter#getParamsFromMethods(java.lang.Object) }. The
+ * methods are only discovered once per class and shared by every instance of
+ * that class, so binding the parameters to a new object, such as each copy
+ * made during a parameter search, is cheap. The parameters are bound to the
+ * object they were created from, so each wrapper needs its own cache.
+ *
+ * @author Edward Raff
+ */
+class ParameterCache
+{
+    /**
+     * The get/set method pairs of every class seen so far
+     */
+    private static final ConcurrentHashMap<Class<?>, List<Accessor>> ACCESSORS = new ConcurrentHashMap<Class<?>, List<Accessor>>();
+
+    private final List<Parameter> parameters;
+    private final Map<String, Parameter> parameterMap;
+
+    /**
+     * Creates a new cache of the parameters of the given object
+     * @param obj the Weka object to infer parameters from
+     */
+    public ParameterCache(Object obj)
+    {
+        List<Accessor> accessors = accessorsOf(obj.getClass());
+        List<Parameter> params = new ArrayList<Parameter>(accessors.size());
+        for(Accessor accessor : accessors)
+            params.add(accessor.bind(obj));
+        this.parameters = Collections.unmodifiableList(params);
+        this.parameterMap = Parameter.toParameterMap(parameters);
+    }
+
+    /**
+     * @return the read only list of parameters
+     */
+    public List<Parameter> getParameters()
+    {
+        return parameters;
+    }
+
+    /**
+     * @param paramName the name of the parameter
+     * @return the parameter with the given name, or {@code null} if there is
+     * no such parameter
+     */
+    public Parameter getParameter(String paramName)
+    {
+        return parameterMap.get(paramName);
+    }
+
+    /**
+     * Sets the value of every parameter named in the given map. Numeric
+     * values are accepted for double parameters, whole numbers that fit in an
+     * int for integer parameters, and Booleans for boolean parameters. Either
+     * every value is set, or the parameters are left as they were.
+     * @param values the map from parameter name to the value to set it to
+     * @throws IllegalArgumentException if a parameter does not exist, or
+     * if it does not accept the given value
+     */
+    public void setParameters(Map<String, ?> values)
+    {
+        //resolve and type check everything before changing anything
+        List<Parameter> params = new ArrayList<Parameter>(values.size());
+        List<Object> newValues = new ArrayList<Object>(values.size());
+        for(Map.Entry<String, ?> entry : values.entrySet())
+        {
+            Parameter param = parameterMap.get(entry.getKey());
+            if(param == null)
+                throw new IllegalArgumentException("No parameter named " + entry.getKey());
+            if(!accepts(param, entry.getValue()))
+                throw new IllegalArgumentException("Parameter " + entry.getKey() + " can not be set to " + entry.getValue());
+            params.add(param);
+            newValues.add(entry.getValue());
+        }
+
+        List<Object> oldValues = new ArrayList<Object>(params.size());
+        for(Parameter param : params)
+            oldValues.add(getValue(param));
+        for(int i = 0; i < params.size(); i++)
+            if(!setValue(params.get(i), newValues.get(i)))
+            {
+                //the Weka object rejected the value, put back the ones already set
+                for(int j = i - 1; j >= 0; j--)
+                    setValue(params.get(j), oldValues.get(j));
+                throw new IllegalArgumentException("Parameter " + params.get(i).getASCIIName() + " can not be set to " + newValues.get(i));
+            }
+    }
+
+    /**
+     * @param param the parameter to set
+     * @param value the value to set it to
+     * @return {@code true} if the value is of a type the parameter can take
+     */
+    private static boolean accepts(Parameter param, Object value)
+    {
+        if(param instanceof DoubleParameter)
+            return value instanceof Number;
+        else if(param instanceof IntParameter)//no silent truncation of 2.7 to 2
+            return value instanceof Number && ((Number) value).doubleValue() == ((Number) value).intValue();
+        else if(param instanceof BooleanParameter)
+            return value instanceof Boolean;
+        return false;
+    }
+
+    /**
+     * @param param the parameter to read
+     * @return the current value of the parameter, in a form
+     * {@link #setValue(jsat.parameters.Parameter, java.lang.Object) } accepts
+     */
+    private static Object getValue(Parameter param)
+    {
+        if(param instanceof DoubleParameter)
+            return ((DoubleParameter) param).getValue();
+        else if(param instanceof IntParameter)
+            return ((IntParameter) param).getValue();
+        return ((BooleanParameter) param).getValue();
+    }
+
+    private static boolean setValue(Parameter param, Object value)
+    {
+        if(param instanceof DoubleParameter && value instanceof Number)
+            return ((DoubleParameter) param).setValue(((Number) value).doubleValue());
+        else if(param instanceof IntParameter && value instanceof Number)
+            return ((IntParameter) param).setValue(((Number) value).intValue());
+        else if(param instanceof BooleanParameter && value instanceof Boolean)
+            return ((BooleanParameter) param).setValue((Boolean) value);
+        return false;
+    }
+
+    /**
+     * Returns the get/set method pairs of the given class, discovering them
+     * the first time the class is seen
+     * @param clazz the class of the Weka object
+     * @return the accessors of every supported parameter, sorted by name
+     */
+    private static List<Accessor> accessorsOf(Class<?> clazz)
+    {
+        List<Accessor> accessors = ACCESSORS.get(clazz);
+        if(accessors != null)
+            return accessors;
+
+        Map<String, Method> getters = new HashMap<String, Method>();
+        Map<String, Method> setters = new HashMap<String, Method>();
+        for(Method method : clazz.getMethods())
+        {
+            int paramCount = method.getParameterTypes().length;
+            String name = method.getName();
+            if(name.length() <= 3 || method.isVarArgs())
+                continue;
+            if(name.startsWith("get") && paramCount == 0)
+                getters.put(name.substring(3), method);
+            else if(name.startsWith("set") && paramCount == 1)
+                setters.put(name.substring(3), method);
+        }
+
+        accessors = new ArrayList<Accessor>();
+        for(Map.Entry<String, Method> entry : getters.entrySet())
+        {
+            Method getter = entry.getValue();
+            Method setter = setters.get(entry.getKey());
+            if(setter == null || !getter.getReturnType().equals(setter.getParameterTypes()[0]))
+                continue;
+            Class<?> type = getter.getReturnType();
+            if(type == double.class || type == Double.class || type == int.class || type == Integer.class || type == boolean.class || type == Boolean.class)
+                accessors.add(new Accessor(spaceCamelCase(entry.getKey()), type, getter, setter));
+        }
+        Collections.sort(accessors);
+        accessors = Collections.unmodifiableList(accessors);
+        List<Accessor> existing = ACCESSORS.putIfAbsent(clazz, accessors);
+        return existing == null ? accessors : existing;
+    }
+
+    /**
+     * @param name a camel case name, such as "NumIterations"
+     * @return the name with a space before each upper case letter after the
+     * first, such as "Num Iterations"
+     */
+    private static String spaceCamelCase(String name)
+    {
+        StringBuilder sb = new StringBuilder(name.length() + 4);
+        for(int i = 0; i < name.length(); i++)
+        {
+            char c = name.charAt(i);
+            if(i > 0 && Character.isUpperCase(c))
+                sb.append(' ');
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The get and set methods of one parameter of a class, which can be bound
+     * to any instance of that class
+     */
+    private static class Accessor implements Comparable<Accessor>
+    {
+        final String name;
+        final Class<?> type;
+        final Method getter;
+        final Method setter;
+
+        public Accessor(String name, Class<?> type, Method getter, Method setter)
+        {
+            this.name = name;
+            this.type = type;
+            this.getter = getter;
+            this.setter = setter;
+        }
+
+        /**
+         * @param obj the object to read and write the parameter of
+         * @return a parameter that reads and writes the given object
+         */
+        Parameter bind(final Object obj)
+        {
+            if(type == double.class || type == Double.class)
+                return new DoubleParameter()
+                {
+                    @Override
+                    public double getValue()
+                    {
+                        return ((Number) get(obj)).doubleValue();
+                    }
+
+                    @Override
+                    public boolean setValue(double val)
+                    {
+                        return set(obj, val);
+                    }
+
+                    @Override
+                    public String getASCIIName()
+                    {
+                        return name;
+                    }
+                };
+            else if(type == int.class || type == Integer.class)
+                return new IntParameter()
+                {
+                    @Override
+                    public int getValue()
+                    {
+                        return ((Number) get(obj)).intValue();
+                    }
+
+                    @Override
+                    public boolean setValue(int val)
+                    {
+                        return set(obj, val);
+                    }
+
+                    @Override
+                    public String getASCIIName()
+                    {
+                        return name;
+                    }
+                };
+            else
+                return new BooleanParameter()
+                {
+                    @Override
+                    public boolean getValue()
+                    {
+                        return (Boolean) get(obj);
+                    }
+
+                    @Override
+                    public boolean setValue(boolean val)
+                    {
+                        return set(obj, val);
+                    }
+
+                    @Override
+                    public String getASCIIName()
+                    {
+                        return name;
+                    }
+                };
+        }
+
+        private Object get(Object obj)
+        {
+            try
+            {
+                return getter.invoke(obj);
+            }
+            catch (IllegalAccessException ex)
+            {
+                throw new IllegalStateException(ex);
+            }
+            catch (InvocationTargetException ex)
+            {
+                throw new IllegalStateException(ex.getCause());
+            }
+        }
+
+        /**
+         * @return {@code false} if the object rejected the value
+         */
+        private boolean set(Object obj, Object value)
+        {
+            try
+            {
+                setter.invoke(obj, value);
+                return true;
+            }
+            catch (IllegalAccessException ex)
+            {
+                return false;
+            }
+            catch (InvocationTargetException ex)
+            {
+                return false;
+            }
+        }
+
+        @Override
+        public int compareTo(Accessor o)
+        {
+            return name.compareTo(o.name);
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.edwardraff.wekajsatbridge;
+
+/*
+ * Copyright (C) 2014 Edward Raff
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import jsat.classifiers.DataPoint;
+import jsat.linear.IndexValue;
+import jsat.linear.Vec;
+import weka.core.Instance;
+import weka.core.SparseInstance;
+import weka.core.UnassignedDatasetException;
+
+/**
+ * A size bounded cache of predictions, keyed on the values and weight of the
+ * input that was predicted. When full, the least recently used prediction is
+ * evicted. All methods are safe to call from multiple threads. <br>
+ * <br>
+ * Keys keep a copy of the input values, so two different inputs that happen
+ * to hash the same will never share a prediction. The class value of a Weka
+ * instance is not part of its key.
+ *
+ * @param <V> the type of prediction stored
+ * @author Edward Raff
+ */
+public class PredictionCache<V>
+{
+    private final int maxSize;
+    private final LinkedHashMap<Key, V> predictions;
+    private long hits, misses, evictions;
+
+    /**
+     * Creates a new prediction cache
+     * @param maxSize the maximum number of predictions to hold
+     */
+    public PredictionCache(final int maxSize)
+    {
+        if(maxSize <= 0)
+            throw new IllegalArgumentException("maximum size must be positive, not " + maxSize);
+        this.maxSize = maxSize;
+        this.predictions = new LinkedHashMap<Key, V>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, V> eldest)
+            {
+                if(size() <= maxSize)
+                    return false;
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached prediction for the given key, counting a hit or miss
+     * @param key the key of the input to look up
+     * @return the cached prediction, or {@code null} if there is none
+     */
+    public synchronized V get(Key key)
+    {
+        V prediction = predictions.get(key);
+        if(prediction == null)
+            misses++;
+        else
+            hits++;
+        return prediction;
+    }
+
+    /**
+     * Stores a prediction in the cache, evicting the least recently used
+     * prediction if the cache is full
+     * @param key the key of the input that was predicted
+     * @param prediction the prediction for the input
+     */
+    public synchronized void put(Key key, V prediction)
+    {
+        predictions.put(key, prediction);
+    }
+
+    /**
+     * Removes all predictions from the cache. The counters are not reset.
+     */
+    public synchronized void clear()
+    {
+        predictions.clear();
+    }
+
+    /**
+     * @return the number of predictions currently cached
+     */
+    public synchronized int size()
+    {
+        return predictions.size();
+    }
+
+    /**
+     * @return the maximum number of predictions that will be cached
+     */
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * @return the number of lookups that found a prediction
+     */
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * @return the number of lookups that did not find a prediction
+     */
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * @return the number of predictions evicted to make room for new ones
+     */
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    /**
+     * The values and weight of an input, used as the key of a prediction.
+     */
+    public static class Key
+    {
+        private final int length;
+        /**
+         * The indices of the values for sparse inputs, {@code null} for dense
+         */
+        private final int[] indices;
+        private final double[] values;
+        private final int[] nominalValues;
+        private final double weight;
+        private final int hash;
+
+        private Key(int length, int[] indices, double[] values, int[] nominalValues, double weight)
+        {
+            this.length = length;
+            this.indices = indices;
+            this.values = values;
+            this.nominalValues = nominalValues;
+            this.weight = weight;
+
+            int h = length;
+            h = 31*h + Arrays.hashCode(indices);
+            h = 31*h + Arrays.hashCode(values);
+            h = 31*h + Arrays.hashCode(nominalValues);
+            long bits = Double.doubleToLongBits(weight);
+            this.hash = 31*h + (int) (bits ^ (bits >>> 32));
+        }
+
+        /**
+         * Creates the key for a JSAT data point
+         * @param dp the data point to create a key for
+         * @return the key for the data point
+         */
+        public static Key of(DataPoint dp)
+        {
+            Vec numericValues = dp.getNumericalValues();
+            int[] indices = null;
+            double[] values;
+            if(numericValues.isSparse())
+            {
+                indices = new int[numericValues.nnz()];
+                values = new double[indices.length];
+                int pos = 0;
+                for(IndexValue iv : numericValues)
+                {
+                    indices[pos] = iv.getIndex();
+                    values[pos++] = iv.getValue();
+                }
+            }
+            else
+                values = numericValues.arrayCopy();
+
+            return new Key(numericValues.length(), indices, values, dp.getCategoricalValues().clone(), dp.getWeight());
+        }
+
+        /**
+         * Creates the key for a Weka instance, leaving out its class value
+         * @param instance the instance to create a key for
+         * @return the key for the instance
+         */
+        public static Key of(Instance instance)
+        {
+            int classIndex;
+            try
+            {
+                classIndex = instance.classIndex();
+            }
+            catch (UnassignedDatasetException ex)
+            {
+                classIndex = -1;//nodataset for instance
+            }
+
+            int[] indices = null;
+            double[] values;
+            if(instance instanceof SparseInstance)
+            {
+                int numValues = instance.numValues();
+                indices = new int[numValues];
+                values = new double[numValues];
+                int pos = 0;
+                for(int i = 0; i < numValues; i++)
+                {
+                    int index = instance.index(i);
+                    if(index == classIndex)
+                        continue;
+                    indices[pos] = index;
+                    values[pos++] = instance.valueSparse(i);
+                }
+                if(pos < numValues)
+                {
+                    indices = Arrays.copyOf(indices, pos);
+                    values = Arrays.copyOf(values, pos);
+                }
+            }
+            else
+            {
+                values = instance.toDoubleArray();
+                if(classIndex >= 0)
+                    values[classIndex] = 0;
+            }
+
+            return new Key(instance.numAttributes(), indices, values, new int[0], instance.weight());
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if(this == obj)
+                return true;
+            if(!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return hash == other.hash && length == other.length
+                    && Double.compare(weight, other.weight) == 0
+                    && Arrays.equals(indices, other.indices)
+                    && Arrays.equals(values, other.values)
+                    && Arrays.equals(nominalValues, other.nominalValues);
+        }
+    }
+}
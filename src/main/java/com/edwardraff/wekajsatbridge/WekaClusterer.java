@@ -18,17 +18,29 @@ package com.edwardraff.wekajsatbridge;
  */
 
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import jsat.DataSet;
+import jsat.classifiers.DataPoint;
 import jsat.clustering.ClustererBase;
 import jsat.clustering.KClusterer;
 import jsat.exceptions.FailedToFitException;
+import jsat.exceptions.UntrainedModelException;
 import jsat.parameters.Parameter;
 import jsat.parameters.Parameterized;
+import jsat.utils.SystemInfo;
 import weka.clusterers.Clusterer;
+import weka.clusterers.UpdateableClusterer;
+import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.OptionHandler;
 import weka.filters.Filter;
@@ -50,6 +62,41 @@ import weka.filters.unsupervised.attribute.Remove;
 public class WekaClusterer extends ClustererBase implements Parameterized
 {
     private Clusterer wekaClusterer;
+    /**
+     * The header of the data the clusterer was built on, without a class
+     * attribute. Weka needs an instance to belong to a dataset before it can
+     * be clustered.
+     */
+    private Instances wekaDataSet;
+    private int numClusters;
+    /**
+     * The number of data points to build the clusterer from, or 0 to use all
+     */
+    private int trainingSampleSize = 0;
+    private boolean incrementalTraining = false;
+    private int chunkSize = 1024;
+    /**
+     * The seed of the random sample the clusterer is built from
+     */
+    private long seed = 0x5EED;
+    /**
+     * Lazily created cache of the parameters of the Weka object
+     */
+    private transient ParameterCache parameterCache;
+    /**
+     * Optional cache of converted training data, shared with copies
+     */
+    private transient ConversionCache conversionCache;
+    /**
+     * Copies of the built Weka clusterer, one for each thread assigning data
+     * points, kept until the clusterer is built again
+     */
+    private transient List<Clusterer> assignCopies;
+    /**
+     * The value array each thread converts data points into, reused across
+     * calls
+     */
+    private transient ThreadLocal<double[]> localValues;
 
     /**
      * Creates a new JSAT cluster from the given Weka clusterer
@@ -63,12 +110,188 @@ public class WekaClusterer extends ClustererBase implements Parameterized
     public WekaClusterer(WekaClusterer toCopy)
     {
         this.wekaClusterer = OtherUtils.serializationCopy(toCopy.wekaClusterer);
+        if(toCopy.wekaDataSet != null)
+            this.wekaDataSet = OtherUtils.serializationCopy(new Instances(toCopy.wekaDataSet, 0));
+        this.numClusters = toCopy.numClusters;
+        this.trainingSampleSize = toCopy.trainingSampleSize;
+        this.incrementalTraining = toCopy.incrementalTraining;
+        this.chunkSize = toCopy.chunkSize;
+        this.seed = toCopy.seed;
+        this.conversionCache = toCopy.conversionCache;
+    }
+
+    /**
+     * Sets the number of data points the Weka clusterer is built from. When
+     * positive, {@link #cluster(jsat.DataSet, int[]) } builds the clusterer
+     * from a uniform random sample of this many data points, and then assigns
+     * the whole dataset in chunks without ever converting all of it at once.
+     * @param trainingSampleSize the number of data points to build the
+     * clusterer from, or 0 to convert and build from the whole dataset
+     */
+    public void setTrainingSampleSize(int trainingSampleSize)
+    {
+        if(trainingSampleSize < 0)
+            throw new IllegalArgumentException("sample size must be non-negative, not " + trainingSampleSize);
+        this.trainingSampleSize = trainingSampleSize;
+    }
+
+    /**
+     * @return the number of data points the Weka clusterer is built from, or
+     * 0 if it is built from the whole dataset
+     */
+    public int getTrainingSampleSize()
+    {
+        return trainingSampleSize;
+    }
+
+    /**
+     * Sets the seed used to pick the data points the Weka clusterer is built
+     * from when a training sample size is set. The same seed and dataset
+     * always give the same sample.
+     * @param seed the seed of the random sample
+     */
+    public void setSeed(long seed)
+    {
+        this.seed = seed;
+    }
+
+    /**
+     * @return the seed of the random sample the clusterer is built from
+     */
+    public long getSeed()
+    {
+        return seed;
+    }
+
+    /**
+     * Sets whether the Weka clusterer is built incrementally. When enabled,
+     * {@link #cluster(jsat.DataSet, int[]) } converts and feeds the data
+     * points one at a time to
+     * {@link UpdateableClusterer#updateClusterer(weka.core.Instance) }. If a
+     * training sample size is also set, only the sampled data points are fed
+     * to the clusterer.
+     * @param incrementalTraining {@code true} to build the clusterer
+     * incrementally
+     * @throws IllegalArgumentException if the Weka clusterer is not an
+     * {@link UpdateableClusterer}
+     */
+    public void setIncrementalTraining(boolean incrementalTraining)
+    {
+        if(incrementalTraining && !(wekaClusterer instanceof UpdateableClusterer))
+            throw new IllegalArgumentException("The given Weka clusterer (" + wekaClusterer.getClass().getSimpleName() + ") dosn't support incremental updates");
+        this.incrementalTraining = incrementalTraining;
+    }
+
+    /**
+     * @return {@code true} if the Weka clusterer is built incrementally
+     */
+    public boolean isIncrementalTraining()
+    {
+        return incrementalTraining;
+    }
+
+    /**
+     * Sets the number of data points that are assigned to clusters at a time
+     * when a sample or incremental training is used, and by
+     * {@link #assign(jsat.DataSet, java.util.concurrent.ExecutorService) }.
+     * @param chunkSize the number of data points in each chunk
+     */
+    public void setChunkSize(int chunkSize)
+    {
+        if(chunkSize <= 0)
+            throw new IllegalArgumentException("chunk size must be positive, not " + chunkSize);
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @return the number of data points that are assigned at a time
+     */
+    public int getChunkSize()
+    {
+        return chunkSize;
     }
 
     @Override
     public int[] cluster(DataSet arg0, int[] assignment)
     {
-        Instances instances = InstanceHandler.dataSetToInstances(arg0);
+        return cluster(arg0, null, assignment);
+    }
+
+    @Override
+    public int[] cluster(DataSet arg0, ExecutorService arg1, int[] assignment)
+    {
+        dropAssignCopies();
+        if(trainingSampleSize == 0 && !incrementalTraining)
+            return clusterAll(arg0, assignment);
+
+        buildBounded(arg0);
+        if(assignment == null || assignment.length < arg0.getSampleSize())
+            assignment = new int[arg0.getSampleSize()];
+        assign(arg0, arg1, assignment);
+        return assignment;
+    }
+
+    /**
+     * Builds the Weka clusterer without converting the whole dataset, either
+     * from a sample or by streaming the data points into it.
+     * @param dataSet the data to build the clusterer from
+     */
+    private void buildBounded(DataSet dataSet)
+    {
+        //the header has no class attribute, so no filtering is needed
+        Instances header = InstanceHandler.createHeader(dataSet, false, 0);
+        int n = dataSet.getSampleSize();
+        int needed = trainingSampleSize == 0 ? n : Math.min(trainingSampleSize, n);
+        Random rand = new Random(seed);
+        try
+        {
+            if(incrementalTraining)
+            {
+                UpdateableClusterer updateable = (UpdateableClusterer) wekaClusterer;
+                wekaClusterer.buildClusterer(header);
+                for(int i = 0; i < n && needed > 0; i++)
+                    if(rand.nextInt(n - i) < needed)//selection sampling, keeps every point when needed == n
+                    {
+                        //the clusterer may hold on to the instance, so it can't share an array
+                        Instance instance = InstanceHandler.dataPointToInstance(dataSet.getDataPoint(i));
+                        instance.setDataset(header);
+                        updateable.updateClusterer(instance);
+                        needed--;
+                    }
+                updateable.updateFinished();
+            }
+            else
+            {
+                Instances sample = InstanceHandler.createHeader(dataSet, false, needed);
+                for(int i = 0; i < n && needed > 0; i++)
+                    if(rand.nextInt(n - i) < needed)//selection sampling
+                    {
+                        sample.add(InstanceHandler.dataPointToInstance(dataSet.getDataPoint(i)));
+                        needed--;
+                    }
+                wekaClusterer.buildClusterer(sample);
+            }
+            this.wekaDataSet = header;
+            this.numClusters = wekaClusterer.numberOfClusters();
+        }
+        catch (Exception ex)
+        {
+            Logger.getLogger(WekaClusterer.class.getName()).log(Level.SEVERE, null, ex);
+            throw new FailedToFitException(ex);
+        }
+    }
+
+    /**
+     * Converts the whole dataset, builds the clusterer on it, and assigns
+     * every data point
+     */
+    private int[] clusterAll(DataSet arg0, int[] assignment)
+    {
+        Instances instances;
+        if(conversionCache != null)
+            instances = conversionCache.toInstances(arg0);
+        else
+            instances = InstanceHandler.dataSetToInstances(arg0);
         //cleanup might be needed first
         if(instances.classIndex() >= 0)
         {
@@ -93,6 +316,8 @@ public class WekaClusterer extends ClustererBase implements Parameterized
         try
         {
             wekaClusterer.buildClusterer(instances);
+            this.wekaDataSet = OtherUtils.serializationCopy(new Instances(instances, 0));
+            this.numClusters = wekaClusterer.numberOfClusters();
             if(assignment == null || assignment.length < arg0.getSampleSize())
                 assignment = new int[arg0.getSampleSize()];
             /*
@@ -111,10 +336,242 @@ public class WekaClusterer extends ClustererBase implements Parameterized
         }
     }
 
-    @Override
-    public int[] cluster(DataSet arg0, ExecutorService arg1, int[] arg2)
+    /**
+     * Assigns a data point to one of the clusters found by the last call to
+     * {@link #cluster(jsat.DataSet, int[]) }, without rebuilding the model.
+     * The data point is converted into a value array kept by the calling
+     * thread, and only the Weka call itself holds the lock on the clusterer.
+     * @param dp the data point to assign
+     * @return the index of the cluster the data point belongs to, or -1 if
+     * the Weka clusterer failed to assign it
+     * @throws UntrainedModelException if no clustering has been done yet
+     */
+    public int assign(DataPoint dp)
+    {
+        checkTrained();
+        Instance instance = toInstance(dp, localValues());
+        try
+        {
+            synchronized(wekaClusterer)//Weka clusterers may keep state while assigning
+            {
+                return wekaClusterer.clusterInstance(instance);
+            }
+        }
+        catch (Exception ex)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Assigns every data point in the given dataset to one of the clusters
+     * found by the last call to {@link #cluster(jsat.DataSet, int[]) },
+     * without rebuilding the model.
+     * @param dataSet the data points to assign
+     * @return the index of the cluster each data point belongs to, or -1 if
+     * the Weka clusterer failed to assign it
+     * @throws UntrainedModelException if no clustering has been done yet
+     */
+    public int[] assign(DataSet dataSet)
+    {
+        return assign(dataSet, null);
+    }
+
+    /**
+     * Assigns every data point in the given dataset to one of the clusters
+     * found by the last call to {@link #cluster(jsat.DataSet, int[]) },
+     * without rebuilding the model. The data points are converted and assigned
+     * in chunks of {@link #getChunkSize() } with one reused value array per
+     * thread, so memory use does not grow with the size of the dataset beyond
+     * the returned assignments. Weka clusterers are not safe to use from
+     * several threads, so each thread uses its own copy of the clusterer. The
+     * copies are made on first use and kept until the next call to
+     * {@link #cluster(jsat.DataSet, int[]) }.
+     * @param dataSet the data points to assign
+     * @param threadPool the source of threads to use, or {@code null} to
+     * assign everything in the calling thread
+     * @return the index of the cluster each data point belongs to, or -1 if
+     * the Weka clusterer failed to assign it
+     * @throws UntrainedModelException if no clustering has been done yet
+     * @throws IllegalStateException if the Weka clusterer could not be copied
+     */
+    public int[] assign(DataSet dataSet, ExecutorService threadPool)
+    {
+        checkTrained();
+        int[] assignment = new int[dataSet.getSampleSize()];
+        assign(dataSet, threadPool, assignment);
+        return assignment;
+    }
+
+    private void assign(final DataSet dataSet, ExecutorService threadPool, final int[] assignment)
+    {
+        if(threadPool == null)
+        {
+            synchronized(wekaClusterer)
+            {
+                assignRange(wekaClusterer, dataSet, 0, dataSet.getSampleSize(), assignment);
+            }
+            return;
+        }
+
+        final int n = dataSet.getSampleSize();
+        final int chunks = (n + chunkSize - 1) / chunkSize;
+        final AtomicInteger nextChunk = new AtomicInteger();
+        int threads = Math.max(1, Math.min(SystemInfo.LogicalCores, chunks));
+        List<Clusterer> copies = getAssignCopies(threads);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(threads);
+        for(final Clusterer localClusterer : copies)
+        {
+            tasks.add(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                {
+                    int chunk;
+                    while((chunk = nextChunk.getAndIncrement()) < chunks)
+                    {
+                        int from = chunk * chunkSize;
+                        synchronized(localClusterer)//the copies are shared by concurrent calls
+                        {
+                            assignRange(localClusterer, dataSet, from, Math.min(from + chunkSize, n), assignment);
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        try
+        {
+            for(Future<Void> future : threadPool.invokeAll(tasks))
+                future.get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+        catch (ExecutionException ex)
+        {
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
+    /**
+     * Returns the soft assignment of a data point to the clusters found by
+     * the last call to {@link #cluster(jsat.DataSet, int[]) }. Density based
+     * Weka clusterers return the probability of each cluster, while others
+     * give all weight to the single cluster the data point is assigned to.
+     * Like {@link #assign(jsat.classifiers.DataPoint) }, the data point is
+     * converted outside of the lock into a value array kept by the calling
+     * thread.
+     * @param dp the data point to assign
+     * @return the membership of the data point in each cluster, or all zeros
+     * if the Weka clusterer failed to assign it
+     * @throws UntrainedModelException if no clustering has been done yet
+     */
+    public double[] clusterDistribution(DataPoint dp)
+    {
+        checkTrained();
+        Instance instance = toInstance(dp, localValues());
+        try
+        {
+            synchronized(wekaClusterer)
+            {
+                return wekaClusterer.distributionForInstance(instance);
+            }
+        }
+        catch (Exception ex)
+        {
+            return new double[numClusters];
+        }
+    }
+
+    /**
+     * Returns copies of the built Weka clusterer, making any that are missing
+     * @param count the number of copies needed
+     * @return the first {@code count} copies
+     * @throws IllegalStateException if the clusterer could not be copied
+     */
+    private synchronized List<Clusterer> getAssignCopies(int count)
+    {
+        if(assignCopies == null)
+            assignCopies = new ArrayList<Clusterer>(count);
+        while(assignCopies.size() < count)
+        {
+            Clusterer copy = OtherUtils.serializationCopy(wekaClusterer);
+            if(copy == null)
+                throw new IllegalStateException("The Weka clusterer (" + wekaClusterer.getClass().getSimpleName() + ") could not be copied to assign in parallel");
+            assignCopies.add(copy);
+        }
+        return new ArrayList<Clusterer>(assignCopies.subList(0, count));
+    }
+
+    /**
+     * Drops the copies of the clusterer, which are out of date once it is
+     * built again
+     */
+    private synchronized void dropAssignCopies()
+    {
+        assignCopies = null;
+    }
+
+    private void checkTrained()
+    {
+        if(wekaDataSet == null)
+            throw new UntrainedModelException("The clusterer must be built by calling cluster before data can be assigned");
+    }
+
+    /**
+     * Returns the value array of the calling thread, sized for the header of
+     * the last clustering
+     */
+    private double[] localValues()
+    {
+        ThreadLocal<double[]> local = localValues;
+        if(local == null)//transient, so it is also missing after deserialization
+            localValues = local = new ThreadLocal<double[]>();
+        double[] attValues = local.get();
+        if(attValues == null || attValues.length != wekaDataSet.numAttributes())
+        {
+            attValues = new double[wekaDataSet.numAttributes()];
+            local.set(attValues);
+        }
+        return attValues;
+    }
+
+    /**
+     * Converts a data point into an instance of the clustering header, backed
+     * by the given value array
+     */
+    private Instance toInstance(DataPoint dp, double[] attValues)
+    {
+        Instance instance = InstanceHandler.dataPointToInstance(dp, attValues);
+        instance.setDataset(wekaDataSet);
+        return instance;
+    }
+
+    /**
+     * Assigns a contiguous range of data points, reusing the value array of
+     * the calling thread
+     */
+    private void assignRange(Clusterer clusterer, DataSet dataSet, int from, int to, int[] assignment)
+    {
+        double[] attValues = localValues();
+        for(int i = from; i < to; i++)
+            assignment[i] = assign(clusterer, dataSet.getDataPoint(i), attValues);
+    }
+
+    private int assign(Clusterer clusterer, DataPoint dp, double[] attValues)
     {
-        return cluster(arg0, arg2);
+        Instance instance = toInstance(dp, attValues);
+        try
+        {
+            return clusterer.clusterInstance(instance);
+        }
+        catch (Exception ex)
+        {
+            return -1;
+        }
     }
 
     @Override
@@ -123,15 +580,56 @@ public class WekaClusterer extends ClustererBase implements Parameterized
         return new WekaClusterer(this);
     }
 
+    /**
+     * Sets the cache used to convert data to Weka's format. Sharing
+     * one cache between wrappers that are clustering the same dataset means
+     * that dataset is only converted once. Copies of this wrapper share the
+     * same cache.
+     * @param conversionCache the cache to use, or {@code null} to always
+     * convert the data
+     */
+    public void setConversionCache(ConversionCache conversionCache)
+    {
+        this.conversionCache = conversionCache;
+    }
+
+    /**
+     * @return the cache used to convert data, or {@code null} if
+     * none is used
+     */
+    public ConversionCache getConversionCache()
+    {
+        return conversionCache;
+    }
+
     @Override
     public List<Parameter> getParameters()
     {
-        return Parameter.getParamsFromMethods(wekaClusterer);
+        return getParameterCache().getParameters();
     }
 
     @Override
     public Parameter getParameter(String paramName)
     {
-        return Parameter.toParameterMap(getParameters()).get(paramName);
+        return getParameterCache().getParameter(paramName);
+    }
+
+    /**
+     * Sets the values of many parameters at once, by name. If any value is
+     * rejected, none of the parameters are changed.
+     * @param values the map from parameter name to the value to set it to
+     * @throws IllegalArgumentException if a parameter does not exist, or if
+     * it does not accept the given value
+     */
+    public void setParameters(Map<String, ?> values)
+    {
+        getParameterCache().setParameters(values);
+    }
+
+    private ParameterCache getParameterCache()
+    {
+        if(parameterCache == null)
+            parameterCache = new ParameterCache(wekaClusterer);
+        return parameterCache;
     }
 }
@@ -0,0 +1,337 @@
+package com.edwardraff.wekajsatbridge;
+
+/*
+ * Copyright (C) 2014 Edward Raff
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import jsat.DataSet;
+import jsat.classifiers.ClassificationDataSet;
+import jsat.regression.RegressionDataSet;
+import weka.core.Instances;
+
+/**
+ * This class runs a sweep over many configurations of a wrapped Weka learner.
+ * The JSAT training set is converted into a Weka dataset only once, and every
+ * candidate is then trained against that same converted data, concurrently
+ * when a thread pool is given. <br>
+ * <br>
+ * Each candidate is handed its own shallow copy of the converted dataset, so
+ * learners that shuffle or delete rows will not interfere with each other.
+ * Weka's copy shares the attribute values of each row and only copies them if
+ * they are written to, so this is much cheaper than converting again. The one
+ * conversion uses whichever of dense or sparse instances is estimated to be
+ * smaller, and must fit in the smallest memory budget of the candidates.
+ *
+ * @author Edward Raff
+ */
+public class WekaParameterSweep
+{
+    /**
+     * The outcome of training and scoring one candidate of a sweep.
+     * @param <L> the type of the learner that was evaluated
+     */
+    public static class Result<L>
+    {
+        private final L learner;
+        private final double score;
+        private final long trainingTime;
+        private final long testingTime;
+        private final Exception failure;
+
+        Result(L learner, double score, long trainingTime, long testingTime, Exception failure)
+        {
+            this.learner = learner;
+            this.score = score;
+            this.trainingTime = trainingTime;
+            this.testingTime = testingTime;
+            this.failure = failure;
+        }
+
+        /**
+         * @return the trained learner this result belongs to
+         */
+        public L getLearner()
+        {
+            return learner;
+        }
+
+        /**
+         * Returns the score of the candidate on the test set. This is the
+         * accuracy for classifiers and the mean squared error for regressors.
+         * @return the score of the candidate, or {@link Double#NaN} if it failed
+         */
+        public double getScore()
+        {
+            return score;
+        }
+
+        /**
+         * @return the time spent training the candidate, in nanoseconds
+         */
+        public long getTrainingTime()
+        {
+            return trainingTime;
+        }
+
+        /**
+         * @return the time spent scoring the test set, in nanoseconds
+         */
+        public long getTestingTime()
+        {
+            return testingTime;
+        }
+
+        /**
+         * @return the exception thrown while training or testing the
+         * candidate, or {@code null} if it completed normally
+         */
+        public Exception getFailure()
+        {
+            return failure;
+        }
+    }
+
+    /**
+     * Trains every given classifier on the training set and scores it by its
+     * accuracy on the test set. The training set is only converted once.
+     * @param candidates the configured classifiers to evaluate
+     * @param trainSet the data to train each candidate on
+     * @param testSet the data to score each candidate on
+     * @return the results for each candidate, in the same order as given
+     */
+    public static List<Result<WekaClassifier>> sweepClassifiers(List<WekaClassifier> candidates, ClassificationDataSet trainSet, ClassificationDataSet testSet)
+    {
+        return sweepClassifiers(candidates, trainSet, testSet, null);
+    }
+
+    /**
+     * Trains every given classifier on the training set and scores it by its
+     * accuracy on the test set. The training set is only converted once, and
+     * candidates are trained concurrently.
+     * @param candidates the configured classifiers to evaluate
+     * @param trainSet the data to train each candidate on
+     * @param testSet the data to score each candidate on
+     * @param threadPool the source of threads to train candidates in, or
+     * {@code null} to train them one after another in the calling thread
+     * @return the results for each candidate, in the same order as given
+     * @throws IllegalStateException if converting the training set would
+     * exceed the memory budget of a candidate
+     * @throws IllegalArgumentException if the test set is empty
+     */
+    public static List<Result<WekaClassifier>> sweepClassifiers(List<WekaClassifier> candidates, ClassificationDataSet trainSet, final ClassificationDataSet testSet, ExecutorService threadPool)
+    {
+        checkTestSet(testSet);
+        long memoryBudget = 0;
+        for(WekaClassifier candidate : candidates)
+            memoryBudget = strictestBudget(memoryBudget, candidate.getMemoryBudget());
+        final Instances shared = convert(trainSet, memoryBudget);
+        List<Callable<Result<WekaClassifier>>> tasks = new ArrayList<Callable<Result<WekaClassifier>>>(candidates.size());
+        for(final WekaClassifier candidate : candidates)
+            tasks.add(new Callable<Result<WekaClassifier>>()
+            {
+                @Override
+                public Result<WekaClassifier> call()
+                {
+                    long trainingTime = 0, start = System.nanoTime();
+                    try
+                    {
+                        candidate.trainC(new Instances(shared));
+                        trainingTime = System.nanoTime() - start;
+
+                        start = System.nanoTime();
+                        int correct = 0;
+                        for(int i = 0; i < testSet.getSampleSize(); i++)
+                            if(candidate.classify(testSet.getDataPoint(i)).mostLikely() == testSet.getDataPointCategory(i))
+                                correct++;
+                        double accuracy = correct / (double) testSet.getSampleSize();
+                        return new Result<WekaClassifier>(candidate, accuracy, trainingTime, System.nanoTime() - start, null);
+                    }
+                    catch (Exception ex)
+                    {
+                        return failed(candidate, trainingTime, start, ex);
+                    }
+                }
+            });
+        return run(tasks, threadPool);
+    }
+
+    /**
+     * Trains every given regressor on the training set and scores it by its
+     * mean squared error on the test set. The training set is only converted
+     * once.
+     * @param candidates the configured regressors to evaluate
+     * @param trainSet the data to train each candidate on
+     * @param testSet the data to score each candidate on
+     * @return the results for each candidate, in the same order as given
+     */
+    public static List<Result<WekaRegressor>> sweepRegressors(List<WekaRegressor> candidates, RegressionDataSet trainSet, RegressionDataSet testSet)
+    {
+        return sweepRegressors(candidates, trainSet, testSet, null);
+    }
+
+    /**
+     * Trains every given regressor on the training set and scores it by its
+     * mean squared error on the test set. The training set is only converted
+     * once, and candidates are trained concurrently.
+     * @param candidates the configured regressors to evaluate
+     * @param trainSet the data to train each candidate on
+     * @param testSet the data to score each candidate on
+     * @param threadPool the source of threads to train candidates in, or
+     * {@code null} to train them one after another in the calling thread
+     * @return the results for each candidate, in the same order as given
+     * @throws IllegalStateException if converting the training set would
+     * exceed the memory budget of a candidate
+     * @throws IllegalArgumentException if the test set is empty
+     */
+    public static List<Result<WekaRegressor>> sweepRegressors(List<WekaRegressor> candidates, RegressionDataSet trainSet, final RegressionDataSet testSet, ExecutorService threadPool)
+    {
+        checkTestSet(testSet);
+        long memoryBudget = 0;
+        for(WekaRegressor candidate : candidates)
+            memoryBudget = strictestBudget(memoryBudget, candidate.getMemoryBudget());
+        final Instances shared = convert(trainSet, memoryBudget);
+        List<Callable<Result<WekaRegressor>>> tasks = new ArrayList<Callable<Result<WekaRegressor>>>(candidates.size());
+        for(final WekaRegressor candidate : candidates)
+            tasks.add(new Callable<Result<WekaRegressor>>()
+            {
+                @Override
+                public Result<WekaRegressor> call()
+                {
+                    long trainingTime = 0, start = System.nanoTime();
+                    try
+                    {
+                        candidate.train(new Instances(shared));
+                        trainingTime = System.nanoTime() - start;
+
+                        start = System.nanoTime();
+                        double squaredError = 0;
+                        for(int i = 0; i < testSet.getSampleSize(); i++)
+                        {
+                            double diff = candidate.regress(testSet.getDataPoint(i)) - testSet.getTargetValue(i);
+                            squaredError += diff*diff;
+                        }
+                        double mse = squaredError / testSet.getSampleSize();
+                        return new Result<WekaRegressor>(candidate, mse, trainingTime, System.nanoTime() - start, null);
+                    }
+                    catch (Exception ex)
+                    {
+                        return failed(candidate, trainingTime, start, ex);
+                    }
+                }
+            });
+        return run(tasks, threadPool);
+    }
+
+    /**
+     * Checks that there is something to score the candidates on, as an empty
+     * test set would give every candidate a score of NaN
+     * @param testSet the test set of the sweep
+     * @throws IllegalArgumentException if the test set is empty
+     */
+    private static void checkTestSet(DataSet testSet)
+    {
+        if(testSet.getSampleSize() == 0)
+            throw new IllegalArgumentException("The test set must not be empty");
+    }
+
+    /**
+     * Converts the training set once for the whole sweep, using whichever
+     * representation is estimated to be smaller
+     * @param trainSet the training set to convert
+     * @param memoryBudget the most bytes the conversion may use, or zero for
+     * no limit
+     * @return the converted training set
+     * @throws IllegalStateException if the conversion would exceed the budget
+     */
+    private static Instances convert(DataSet trainSet, long memoryBudget)
+    {
+        MemoryEstimate estimate = MemoryEstimate.ofInstances(trainSet);
+        estimate.checkBudget(memoryBudget);
+        return InstanceHandler.dataSetToInstances(trainSet, null, estimate.getCheapest());
+    }
+
+    /**
+     * @param budget the strictest budget so far, or zero for no limit
+     * @param candidateBudget the budget of another candidate, or zero for no
+     * limit
+     * @return the stricter of the two budgets
+     */
+    private static long strictestBudget(long budget, long candidateBudget)
+    {
+        if(candidateBudget <= 0)
+            return budget;
+        if(budget <= 0)
+            return candidateBudget;
+        return Math.min(budget, candidateBudget);
+    }
+
+    /**
+     * Creates the result for a candidate that threw an exception
+     * @param candidate the candidate that failed
+     * @param trainingTime the training time, or zero if training failed
+     * @param start the time the failing phase started
+     * @param ex the cause of the failure
+     * @return the result recording the failure
+     */
+    private static <L> Result<L> failed(L candidate, long trainingTime, long start, Exception ex)
+    {
+        long elapsed = System.nanoTime() - start;
+        if(trainingTime == 0)
+            return new Result<L>(candidate, Double.NaN, elapsed, 0, ex);
+        return new Result<L>(candidate, Double.NaN, trainingTime, elapsed, ex);
+    }
+
+    /**
+     * Runs all the given tasks, in the thread pool if one is given
+     * @param tasks the tasks to run
+     * @param threadPool the thread pool to use, or {@code null}
+     * @return the results of the tasks, in the same order
+     */
+    private static <R> List<R> run(List<Callable<R>> tasks, ExecutorService threadPool)
+    {
+        List<R> results = new ArrayList<R>(tasks.size());
+        try
+        {
+            if(threadPool == null)
+                for(Callable<R> task : tasks)
+                    results.add(task.call());
+            else
+                for(Future<R> future : threadPool.invokeAll(tasks))
+                    results.add(future.get());
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+        catch (ExecutionException ex)
+        {
+            throw new RuntimeException(ex.getCause());
+        }
+        catch (Exception ex)
+        {
+            throw new RuntimeException(ex);
+        }
+        return results;
+    }
+}
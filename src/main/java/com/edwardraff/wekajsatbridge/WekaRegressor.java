@@ -19,7 +19,9 @@
 
 package com.edwardraff.wekajsatbridge;
 
+import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import jsat.classifiers.DataPoint;
 import jsat.exceptions.FailedToFitException;
@@ -50,7 +52,30 @@ public class WekaRegressor implements jsat.regression.Regressor, Parameterized
      * MUST belong to a dataset, or an exception will be thrown. So
      */
     private Instances wekaDataSet;
-    private Classifier wekaClassifier;
+    /**
+     * Only {@code null} while a lazily loaded model is still serialized
+     */
+    private volatile Classifier wekaClassifier;
+    /**
+     * The serialized Weka model of a lazily loaded bundle, until it is first used
+     */
+    private byte[] serializedModel;
+    /**
+     * Lazily created cache of the parameters of the Weka object
+     */
+    private transient ParameterCache parameterCache;
+    /**
+     * The most bytes converting a training set may use, zero for no limit
+     */
+    private long memoryBudget = 0;
+    /**
+     * Optional cache of converted training data, shared with copies
+     */
+    private transient ConversionCache conversionCache;
+    /**
+     * Optional cache of recent predictions, cleared whenever the model is trained
+     */
+    private transient PredictionCache<Double> predictionCache;
 
     /**
      * Creates a new JSAT Regressor from the given Weka Classifier object that
@@ -66,31 +91,64 @@ public class WekaRegressor implements jsat.regression.Regressor, Parameterized
         this.wekaClassifier = wekaClassifier;
     }
     
+    /**
+     * Creates a trained wrapper whose Weka model is only deserialized when it
+     * is first used
+     * @param serializedModel the serialized trained Weka classifier
+     * @param wekaDataSet the header of the data the model was trained on
+     */
+    WekaRegressor(byte[] serializedModel, Instances wekaDataSet)
+    {
+        this.serializedModel = serializedModel;
+        this.wekaDataSet = wekaDataSet;
+    }
+
     /**
      * Copy constructor
      * @param toCopy the WekaRegressor to copy
      */
     public WekaRegressor(WekaRegressor toCopy)
     {
-        this.wekaClassifier = OtherUtils.serializationCopy(toCopy.wekaClassifier);
+        synchronized(toCopy)
+        {
+            if(toCopy.wekaClassifier == null)//still serialized, so no need to load it
+                this.serializedModel = toCopy.serializedModel;
+            else
+                this.wekaClassifier = OtherUtils.serializationCopy(toCopy.wekaClassifier);
+        }
         if(toCopy.wekaDataSet != null)
             this.wekaDataSet = OtherUtils.serializationCopy(new Instances(toCopy.wekaDataSet, 0));
+        this.memoryBudget = toCopy.memoryBudget;
+        this.conversionCache = toCopy.conversionCache;
     }
 
     @Override
     public boolean supportsWeightedData()
     {
-        return wekaClassifier instanceof WeightedInstancesHandler;
+        return getWekaClassifier() instanceof WeightedInstancesHandler;
     }
 
     @Override
     public double regress(DataPoint data)
     {
+        PredictionCache<Double> cache = predictionCache;
+        PredictionCache.Key key = null;
+        if(cache != null)
+        {
+            key = PredictionCache.Key.of(data);
+            Double cached = cache.get(key);
+            if(cached != null)
+                return cached;
+        }
+        Classifier classifier = getWekaClassifier();
         try
         {
             Instance instance = InstanceHandler.dataPointToInstance(data);
             instance.setDataset(wekaDataSet);
-            return wekaClassifier.classifyInstance(instance);
+            double prediction = classifier.classifyInstance(instance);
+            if(cache != null)
+                cache.put(key, prediction);
+            return prediction;
         }
         catch (Exception ex)
         {
@@ -109,9 +167,14 @@ public class WekaRegressor implements jsat.regression.Regressor, Parameterized
     {
         try
         {
-            Instances instances = InstanceHandler.dataSetToInstances(dataSet);
-            this.wekaDataSet = OtherUtils.serializationCopy(new Instances(instances, 0));
-            wekaClassifier.buildClassifier(instances);
+            if(conversionCache != null)//the budget is only checked if the cache has to convert
+                train(conversionCache.toInstances(dataSet, memoryBudget));
+            else
+            {
+                MemoryEstimate estimate = MemoryEstimate.ofInstances(dataSet);
+                estimate.checkBudget(memoryBudget);
+                train(InstanceHandler.dataSetToInstances(dataSet, null, estimate.getCheapest()));
+            }
         }
         catch (Exception ex)
         {
@@ -119,21 +182,176 @@ public class WekaRegressor implements jsat.regression.Regressor, Parameterized
         }
     }
 
+    /**
+     * Trains the wrapped Weka classifier directly on an already converted
+     * dataset, skipping the conversion from JSAT.
+     * @param instances the Weka dataset to train on, with a numeric class
+     * attribute
+     * @throws Exception if the Weka classifier fails to build
+     */
+    void train(Instances instances) throws Exception
+    {
+        this.wekaDataSet = OtherUtils.serializationCopy(new Instances(instances, 0));
+        getWekaClassifier().buildClassifier(instances);
+        if(predictionCache != null)
+            predictionCache.clear();
+    }
+
     @Override
     public WekaRegressor clone()
     {
         return new WekaRegressor(this);
     }
 
+    /**
+     * Sets the cache used to reuse the predictions of inputs that were seen
+     * recently. The cache is emptied whenever this model is trained, and is
+     * not shared with copies of this object.
+     * @param predictionCache the cache to use, or {@code null} to always
+     * compute predictions
+     */
+    public void setPredictionCache(PredictionCache<Double> predictionCache)
+    {
+        this.predictionCache = predictionCache;
+    }
+
+    /**
+     * @return the cache of recent predictions, or {@code null} if none is used
+     */
+    public PredictionCache<Double> getPredictionCache()
+    {
+        return predictionCache;
+    }
+
+    /**
+     * Sets the most memory that converting a training set may use. Before
+     * converting, the size of the converted dataset is estimated for both
+     * dense and sparse instances, and the cheaper one is used. If even that
+     * would exceed the budget, training fails before anything is converted.
+     * Training sets already held by the conversion cache are not checked.
+     * @param memoryBudget the most bytes a conversion may use, or zero for no
+     * limit
+     * @see MemoryEstimate
+     */
+    public void setMemoryBudget(long memoryBudget)
+    {
+        if(memoryBudget < 0)
+            throw new IllegalArgumentException("memory budget must be non-negative, not " + memoryBudget);
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * @return the most bytes converting a training set may use, or zero if
+     * there is no limit
+     */
+    public long getMemoryBudget()
+    {
+        return memoryBudget;
+    }
+
+    /**
+     * Sets the cache used to convert training data to Weka's format. Sharing
+     * one cache between wrappers that are trained on the same dataset means
+     * that dataset is only converted once. Copies of this wrapper share the
+     * same cache.
+     * @param conversionCache the cache to use, or {@code null} to always
+     * convert the training data
+     */
+    public void setConversionCache(ConversionCache conversionCache)
+    {
+        this.conversionCache = conversionCache;
+    }
+
+    /**
+     * @return the cache used to convert training data, or {@code null} if
+     * none is used
+     */
+    public ConversionCache getConversionCache()
+    {
+        return conversionCache;
+    }
+
     @Override
     public List<Parameter> getParameters()
     {
-        return Parameter.getParamsFromMethods(wekaClassifier);
+        return getParameterCache().getParameters();
     }
 
     @Override
     public Parameter getParameter(String paramName)
     {
-        return Parameter.toParameterMap(getParameters()).get(paramName);
+        return getParameterCache().getParameter(paramName);
+    }
+
+    /**
+     * Sets the values of many parameters at once, by name. If any value is
+     * rejected, none of the parameters are changed.
+     * @param values the map from parameter name to the value to set it to
+     * @throws IllegalArgumentException if a parameter does not exist, or if
+     * it does not accept the given value
+     */
+    public void setParameters(Map<String, ?> values)
+    {
+        getParameterCache().setParameters(values);
+    }
+
+    /**
+     * Returns the wrapped Weka classifier, deserializing it first if it was
+     * loaded lazily
+     * @return the wrapped Weka classifier
+     * @throws IllegalStateException if a lazily loaded model can not be
+     * deserialized
+     */
+    Classifier getWekaClassifier()
+    {
+        Classifier classifier = wekaClassifier;
+        if(classifier == null)
+            synchronized(this)
+            {
+                classifier = wekaClassifier;
+                if(classifier == null)
+                {
+                    try
+                    {
+                        classifier = OtherUtils.deserialize(serializedModel);
+                    }
+                    catch (IOException | ClassNotFoundException ex)
+                    {
+                        throw new IllegalStateException("The serialized Weka model could not be loaded", ex);
+                    }
+                    wekaClassifier = classifier;
+                    serializedModel = null;
+                }
+            }
+        return classifier;
+    }
+
+    /**
+     * Returns the serialized form of the wrapped Weka classifier, without
+     * deserializing it if it was loaded lazily and has not been used yet
+     * @return the serialized Weka classifier
+     * @throws IOException if the classifier could not be serialized
+     */
+    synchronized byte[] getSerializedModel() throws IOException
+    {
+        if(wekaClassifier == null)
+            return serializedModel;
+        return OtherUtils.serialize(wekaClassifier);
+    }
+
+    /**
+     * @return the header of the data the model was trained on, or
+     * {@code null} if untrained
+     */
+    Instances getWekaDataSet()
+    {
+        return wekaDataSet;
+    }
+
+    private ParameterCache getParameterCache()
+    {
+        if(parameterCache == null)
+            parameterCache = new ParameterCache(getWekaClassifier());
+        return parameterCache;
     }
 }
@@ -0,0 +1,324 @@
+package com.edwardraff.wekajsatbridge;
+
+/*
+ * Copyright (C) 2014 Edward Raff
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import jsat.DataSet;
+import jsat.SimpleDataSet;
+import jsat.classifiers.CategoricalData;
+import jsat.classifiers.DataPoint;
+import jsat.linear.DenseVector;
+import jsat.linear.SparseVector;
+import jsat.linear.Vec;
+import org.junit.Test;
+import weka.core.Attribute;
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link ColumnStatistics} and chains of {@link ColumnTransform}s, by
+ * comparing transforms fit in a single pass during conversion against a
+ * reference that makes a separate pass over every column for each transform.
+ *
+ * @author Edward Raff
+ */
+public class ColumnTransformTest
+{
+    private static final double EPS = 1e-9;
+    private static final int ROWS = 40;
+    private static final int COLS = 3;
+    private static final CategoricalData[] CATEGORIES = new CategoricalData[]{new CategoricalData(2)};
+
+    /**
+     * @return the numeric values of the test data. The first column is dense
+     * with some zeros, the second is mostly zeros, and the last has missing
+     * values.
+     */
+    private static double[][] data()
+    {
+        double[][] data = new double[ROWS][COLS];
+        for(int i = 0; i < ROWS; i++)
+        {
+            data[i][0] = i % 4 == 0 ? 0 : i * 0.5 - 3;
+            data[i][1] = i % 5 == 2 ? i * 1.5 : 0;
+            if(i == 13)
+                data[i][1] = Double.NaN;
+            if(i % 6 == 1)
+                data[i][2] = Double.NaN;
+            else
+                data[i][2] = i % 7 == 3 ? 0 : (i % 3) - 1.25;
+        }
+        return data;
+    }
+
+    private static ColumnTransform[][] chains()
+    {
+        return new ColumnTransform[][]
+        {
+            {new ColumnTransform.MeanImputation(), new ColumnTransform.Standardize(), new ColumnTransform.MinMaxScale()},
+            {new ColumnTransform.Standardize(), new ColumnTransform.MeanImputation(), new ColumnTransform.MinMaxScale()},
+            {new ColumnTransform.MinMaxScale(), new ColumnTransform.Standardize(), new ColumnTransform.MeanImputation()},
+        };
+    }
+
+    /**
+     * Applies the transforms one at a time to a copy of the data, each with
+     * its own pass over every column
+     */
+    private static double[][] reference(double[][] data, ColumnTransform[] chain)
+    {
+        double[][] result = new double[data.length][];
+        for(int i = 0; i < data.length; i++)
+            result[i] = data[i].clone();
+        for(ColumnTransform transform : chain)
+            for(int j = 0; j < COLS; j++)
+            {
+                double sum = 0, min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+                int count = 0;
+                for(double[] row : result)
+                    if(!Double.isNaN(row[j]))
+                    {
+                        sum += row[j];
+                        min = Math.min(min, row[j]);
+                        max = Math.max(max, row[j]);
+                        count++;
+                    }
+                double mean = sum / count;
+                double var = 0;
+                for(double[] row : result)
+                    if(!Double.isNaN(row[j]))
+                        var += (row[j] - mean) * (row[j] - mean);
+                double stdDev = Math.sqrt(var / count);
+
+                for(double[] row : result)
+                    if(transform instanceof ColumnTransform.MeanImputation)
+                        row[j] = Double.isNaN(row[j]) ? mean : row[j];
+                    else if(transform instanceof ColumnTransform.Standardize)
+                        row[j] = stdDev > 0 ? (row[j] - mean) / stdDev : row[j] - mean;
+                    else if(max > min)
+                        row[j] = (row[j] - min) / (max - min);
+                    else
+                        row[j] = row[j] - min;
+            }
+        return result;
+    }
+
+    private static void assertRow(double[] expected, double[] actual, int row)
+    {
+        for(int j = 0; j < expected.length; j++)
+            if(Double.isNaN(expected[j]))
+                assertTrue("row " + row + " column " + j, Double.isNaN(actual[j]));
+            else
+                assertEquals("row " + row + " column " + j, expected[j], actual[j], EPS * Math.max(1, Math.abs(expected[j])));
+    }
+
+    @Test
+    public void testStatisticsMatchTwoPass()
+    {
+        double[][] data = data();
+        for(int j = 0; j < COLS; j++)
+        {
+            ColumnStatistics stats = new ColumnStatistics();
+            ColumnStatistics sparseStats = new ColumnStatistics();
+            int zeros = 0;
+            for(double[] row : data)
+            {
+                stats.add(row[j]);
+                if(row[j] == 0)
+                    zeros++;
+                else
+                    sparseStats.add(row[j]);
+            }
+            //zeros added afterwards, the way sparse data is gathered
+            sparseStats.addRepeated(0.0, zeros);
+
+            double sum = 0, min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+            int count = 0;
+            for(double[] row : data)
+                if(!Double.isNaN(row[j]))
+                {
+                    sum += row[j];
+                    min = Math.min(min, row[j]);
+                    max = Math.max(max, row[j]);
+                    count++;
+                }
+            double mean = sum / count, var = 0;
+            for(double[] row : data)
+                if(!Double.isNaN(row[j]))
+                    var += (row[j] - mean) * (row[j] - mean);
+            var /= count;
+
+            for(ColumnStatistics s : new ColumnStatistics[]{stats, sparseStats})
+            {
+                assertEquals(ROWS, s.getObservations());
+                assertEquals(count, s.getCount());
+                assertEquals(ROWS - count, s.getMissing());
+                assertEquals(mean, s.getMean(), EPS);
+                assertEquals(var, s.getVariance(), EPS);
+                assertEquals(min, s.getMin(), 0.0);
+                assertEquals(max, s.getMax(), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testChainStatisticsMatchTwoPass()
+    {
+        double[][] data = data();
+        for(ColumnTransform[] chain : chains())
+        {
+            ColumnStatistics[] stats = new ColumnStatistics[COLS];
+            for(int j = 0; j < COLS; j++)
+            {
+                stats[j] = new ColumnStatistics();
+                for(double[] row : data)
+                    stats[j].add(row[j]);
+            }
+            new ColumnTransformChain(chain).fit(stats);
+
+            //the statistics now describe the output of the whole chain
+            double[][] expected = reference(data, chain);
+            for(int j = 0; j < COLS; j++)
+            {
+                ColumnStatistics direct = new ColumnStatistics();
+                for(double[] row : expected)
+                    direct.add(row[j]);
+                assertEquals(direct.getMissing(), stats[j].getMissing());
+                assertEquals(direct.getMean(), stats[j].getMean(), EPS);
+                assertEquals(direct.getVariance(), stats[j].getVariance(), EPS);
+                assertEquals(direct.getMin(), stats[j].getMin(), EPS);
+                assertEquals(direct.getMax(), stats[j].getMax(), EPS);
+            }
+        }
+    }
+
+    @Test
+    public void testDataSetToInstancesChain()
+    {
+        double[][] data = data();
+        SimpleDataSet dataSet = new SimpleDataSet(CATEGORIES, COLS);
+        for(int i = 0; i < ROWS; i++)
+        {
+            //alternate dense and sparse vectors, sparse ones leave their zeros out
+            Vec vec = i % 2 == 0 ? new DenseVector(COLS) : new SparseVector(COLS);
+            for(int j = 0; j < COLS; j++)
+                if(data[i][j] != 0)
+                    vec.set(j, data[i][j]);
+            dataSet.getBackingList().add(new DataPoint(vec, new int[]{i % 2}, CATEGORIES));
+        }
+
+        for(MemoryEstimate.Representation representation : MemoryEstimate.Representation.values())
+            for(ColumnTransform[] chain : chains())
+            {
+                Instances instances = InstanceHandler.dataSetToInstances(dataSet, new ColumnTransformChain(chain), representation);
+                double[][] expected = reference(data, chain);
+                assertEquals(ROWS, instances.numInstances());
+                for(int i = 0; i < ROWS; i++)
+                {
+                    Instance instance = instances.instance(i);
+                    assertEquals(i % 2, instance.value(0), 0.0);
+                    double[] actual = new double[COLS];
+                    for(int j = 0; j < COLS; j++)
+                        actual[j] = instance.value(1 + j);
+                    assertRow(expected[i], actual, i);
+                }
+            }
+    }
+
+    @Test
+    public void testInstancesToDataSetChain()
+    {
+        double[][] data = data();
+        //a nominal attribute between the numeric ones, and the class last
+        FastVector values = new FastVector(2);
+        values.addElement("a");
+        values.addElement("b");
+        FastVector attributes = new FastVector();
+        attributes.addElement(new Attribute("x0"));
+        attributes.addElement(new Attribute("nominal", values));
+        attributes.addElement(new Attribute("x1"));
+        attributes.addElement(new Attribute("x2"));
+        attributes.addElement(new Attribute("target"));
+        Instances instances = new Instances("test", attributes, ROWS);
+        instances.setClassIndex(4);
+        for(int i = 0; i < ROWS; i++)
+        {
+            double[] attValues = new double[]{data[i][0], i % 2, data[i][1], data[i][2], i};
+            Instance instance = new Instance(1.0, attValues);
+            if(i % 2 == 1)//sparse instances store only the non-zeros, NaN included
+                instance = new SparseInstance(instance);
+            instances.add(instance);
+        }
+
+        for(ColumnTransform[] chain : chains())
+        {
+            DataSet dataSet = InstanceHandler.instancesToDataSet(instances, new ColumnTransformChain(chain));
+            double[][] expected = reference(data, chain);
+            assertEquals(ROWS, dataSet.getSampleSize());
+            for(int i = 0; i < ROWS; i++)
+            {
+                DataPoint dp = dataSet.getDataPoint(i);
+                assertEquals(i % 2, dp.getCategoricalValue(0));
+                assertRow(expected[i], dp.getNumericalValues().arrayCopy(), i);
+            }
+        }
+    }
+
+    @Test
+    public void testFittedChainIsReused()
+    {
+        double[][] data = data();
+        SimpleDataSet train = new SimpleDataSet(CATEGORIES, COLS);
+        for(double[] row : data)
+            train.getBackingList().add(new DataPoint(new DenseVector(row.clone()), new int[]{0}, CATEGORIES));
+        ColumnTransformChain chain = new ColumnTransformChain(new ColumnTransform.MeanImputation(), new ColumnTransform.Standardize());
+        InstanceHandler.dataSetToInstances(train, chain);
+        assertTrue(chain.isFitted());
+
+        //a single test point is transformed with the statistics of the training data
+        double[] testRow = new double[]{1, 2, Double.NaN};
+        SimpleDataSet test = new SimpleDataSet(CATEGORIES, COLS);
+        test.getBackingList().add(new DataPoint(new DenseVector(testRow.clone()), new int[]{0}, CATEGORIES));
+        Instances instances = InstanceHandler.dataSetToInstances(test, chain);
+
+        double[][] imputed = reference(data, new ColumnTransform[]{new ColumnTransform.MeanImputation()});
+        for(int j = 0; j < COLS; j++)
+        {
+            ColumnStatistics stats = new ColumnStatistics();
+            for(double[] row : imputed)
+                stats.add(row[j]);
+            double value = Double.isNaN(testRow[j]) ? stats.getMean() : testRow[j];
+            double expected = (value - stats.getMean()) / Math.sqrt(stats.getVariance());
+            assertEquals(expected, instances.instance(0).value(1 + j), EPS);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testColumnCountChecked()
+    {
+        SimpleDataSet dataSet = new SimpleDataSet(CATEGORIES, COLS);
+        dataSet.getBackingList().add(new DataPoint(new DenseVector(COLS), new int[]{0}, CATEGORIES));
+        ColumnTransformChain chain = new ColumnTransformChain(new ColumnTransform.Standardize());
+        chain.fit(new ColumnStatistics[]{new ColumnStatistics()});
+        InstanceHandler.dataSetToInstances(dataSet, chain);
+    }
+}
@@ -0,0 +1,237 @@
+package com.edwardraff.wekajsatbridge;
+
+/*
+ * Copyright (C) 2014 Edward Raff
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import jsat.DataSet;
+import jsat.classifiers.CategoricalData;
+import jsat.classifiers.ClassificationDataSet;
+import jsat.classifiers.DataPoint;
+import jsat.linear.DenseVector;
+import jsat.linear.Vec;
+import org.junit.Test;
+import weka.core.Attribute;
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests converting between JSAT and Weka datasets with {@link InstanceHandler}
+ *
+ * @author Edward Raff
+ */
+public class InstanceHandlerTest
+{
+    private static final CategoricalData[] CATEGORIES = new CategoricalData[]{new CategoricalData(3)};
+    private static final int ROWS = 24;
+    /**
+     * The attribute of the Weka dataset each attribute of a converted JSAT
+     * dataset comes from: nominal attributes first, then numeric ones, then
+     * the class
+     */
+    private static final int[] ROUND_TRIP_ORDER = new int[]{0, 2, 1, 3, 4};
+
+    private static FastVector nominalValues(String... names)
+    {
+        FastVector values = new FastVector(names.length);
+        for(String name : names)
+            values.addElement(name);
+        return values;
+    }
+
+    /**
+     * @return a Weka dataset of mixed dense and sparse instances, with
+     * missing nominal, numeric and class values, and varying weights
+     */
+    private static Instances missingValueData()
+    {
+        FastVector attributes = new FastVector();
+        attributes.addElement(new Attribute("nominal0", nominalValues("a", "b", "c")));
+        attributes.addElement(new Attribute("numeric0"));
+        attributes.addElement(new Attribute("nominal1", nominalValues("p", "q")));
+        attributes.addElement(new Attribute("numeric1"));
+        attributes.addElement(new Attribute("class", nominalValues("yes", "no")));
+        Instances instances = new Instances("missing", attributes, ROWS);
+        instances.setClassIndex(4);
+
+        double missing = Instance.missingValue();
+        for(int i = 0; i < ROWS; i++)
+        {
+            double[] values = new double[]
+            {
+                i % 5 == 0 ? missing : i % 3,
+                i % 7 == 2 ? missing : (i % 4 == 0 ? 0 : i * 0.25),
+                i % 6 == 3 ? missing : i % 2,
+                i % 3 == 0 ? 0 : -i,
+                i == 10 || i == 17 ? missing : (i / 2) % 2,
+            };
+            Instance instance = new Instance(1 + (i % 4) * 0.5, values);
+            if(i % 2 == 1)//stores only the non-zeros, missing values included
+                instance = new SparseInstance(instance);
+            instances.add(instance);
+        }
+        return instances;
+    }
+
+    private static void assertSameValue(String message, Instance expected, int expectedIndex, Instance actual, int actualIndex)
+    {
+        if(expected.isMissing(expectedIndex))
+            assertTrue(message + " should be missing", actual.isMissing(actualIndex));
+        else
+            assertEquals(message, expected.value(expectedIndex), actual.value(actualIndex), 0.0);
+    }
+
+    /**
+     * Dense vectors only iterate over their non-zeros, so a zero must not
+     * shift the values after it into the wrong attribute
+     */
+    @Test
+    public void testDenseZerosKeepTheirPosition()
+    {
+        double[][] rows = new double[][]
+        {
+            {0, 2.5, 0, 0, -1},
+            {3, 0, 0, 4, 0},
+            {0, 0, 0, 0, 0},
+        };
+        ClassificationDataSet dataSet = new ClassificationDataSet(5, CATEGORIES, new CategoricalData(2));
+        for(int i = 0; i < rows.length; i++)
+            dataSet.addDataPoint(new DataPoint(new DenseVector(rows[i].clone()), new int[]{2 - i}, CATEGORIES), i % 2);
+
+        for(MemoryEstimate.Representation representation : MemoryEstimate.Representation.values())
+            for(boolean transform : new boolean[]{false, true})
+            {
+                ColumnTransformChain chain = transform ? new ColumnTransformChain(new ColumnTransform.Standardize()) : null;
+                Instances instances = InstanceHandler.dataSetToInstances(dataSet, chain, representation);
+                assertEquals(rows.length, instances.numInstances());
+                assertEquals(1 + 5, instances.classIndex());
+                for(int i = 0; i < rows.length; i++)
+                {
+                    Instance instance = instances.instance(i);
+                    assertEquals(2 - i, instance.value(0), 0.0);
+                    for(int j = 0; j < rows[i].length; j++)
+                    {
+                        double expected = transform ? chain.transform(j, rows[i][j]) : rows[i][j];
+                        assertEquals(representation + " row " + i + " column " + j, expected, instance.value(1 + j), 0.0);
+                    }
+                    assertEquals(i % 2, instance.classValue(), 0.0);
+                }
+            }
+    }
+
+    @Test
+    public void testMissingValuesToJSAT()
+    {
+        Instances instances = missingValueData();
+        ClassificationDataSet dataSet = (ClassificationDataSet) InstanceHandler.instancesToDataSet(instances, null, null, true);
+        //instances with a missing class are left out
+        assertEquals(ROWS - 2, dataSet.getSampleSize());
+        InstanceHandler.Schema schema = new InstanceHandler.Schema(instances, true);
+
+        int row = 0;
+        for(int i = 0; i < ROWS; i++)
+        {
+            Instance instance = instances.instance(i);
+            if(instance.classIsMissing())
+                continue;
+            DataPoint dp = dataSet.getDataPoint(row);
+            assertEquals(instance.weight(), dp.getWeight(), 0.0);
+            assertEquals((int) instance.classValue(), dataSet.getDataPointCategory(row));
+
+            int[] nominalAttributes = new int[]{0, 2};
+            for(int c = 0; c < nominalAttributes.length; c++)
+            {
+                int expected = instance.isMissing(nominalAttributes[c]) ? -1 : (int) instance.value(nominalAttributes[c]);
+                assertEquals("row " + i + " nominal " + c, expected, dp.getCategoricalValue(c));
+            }
+
+            Vec numeric = dp.getNumericalValues();
+            int[] numericAttributes = new int[]{1, 3};
+            for(int c = 0; c < numericAttributes.length; c++)
+                if(instance.isMissing(numericAttributes[c]))
+                    assertTrue("row " + i + " numeric " + c, Double.isNaN(numeric.get(c)));
+                else
+                    assertEquals("row " + i + " numeric " + c, instance.value(numericAttributes[c]), numeric.get(c), 0.0);
+
+            //sparse rows stay sparse, and store missing values rather than dropping them
+            assertEquals(instance instanceof SparseInstance, numeric.isSparse());
+            if(instance instanceof SparseInstance)
+            {
+                int stored = 0;
+                for(int k = 0; k < instance.numValues(); k++)
+                    if(instance.index(k) == 1 || instance.index(k) == 3)
+                        stored++;
+                assertEquals("row " + i, stored, numeric.nnz());
+            }
+
+            //single rows are converted the same way as whole datasets
+            for(DataPoint single : new DataPoint[]{InstanceHandler.instanceToDataPoint(instance, true), InstanceHandler.instanceToDataPoint(instance, schema)})
+            {
+                assertArrayEquals(dp.getCategoricalValues(), single.getCategoricalValues());
+                assertArrayEquals(numeric.arrayCopy(), single.getNumericalValues().arrayCopy(), 0.0);
+                assertEquals(dp.getWeight(), single.getWeight(), 0.0);
+            }
+            row++;
+        }
+    }
+
+    @Test
+    public void testMissingValuesIgnoredByDefault()
+    {
+        Instances instances = missingValueData();
+        DataSet dataSet = InstanceHandler.instancesToDataSet(instances);
+        assertEquals(ROWS, dataSet.getSampleSize());
+        //a missing nominal value is read as the first category
+        assertEquals(0, dataSet.getDataPoint(0).getCategoricalValue(0));
+        assertEquals(0, InstanceHandler.instanceToDataPoint(instances.instance(0)).getCategoricalValue(0));
+    }
+
+    @Test
+    public void testMissingValuesRoundTrip()
+    {
+        Instances instances = missingValueData();
+        DataSet dataSet = InstanceHandler.instancesToDataSet(instances, null, null, true);
+
+        for(MemoryEstimate.Representation representation : MemoryEstimate.Representation.values())
+        {
+            Instances back = InstanceHandler.dataSetToInstances(dataSet, null, representation);
+            assertEquals(ROWS - 2, back.numInstances());
+            assertEquals(4, back.classIndex());
+
+            int row = 0;
+            for(int i = 0; i < ROWS; i++)
+            {
+                Instance instance = instances.instance(i);
+                if(instance.classIsMissing())
+                    continue;
+                Instance result = back.instance(row++);
+                assertEquals(instance.weight(), result.weight(), 0.0);
+                for(int k = 0; k < ROUND_TRIP_ORDER.length; k++)
+                    assertSameValue(representation + " row " + i + " attribute " + k, instance, ROUND_TRIP_ORDER[k], result, k);
+
+                boolean sparse = representation == MemoryEstimate.Representation.SPARSE;
+                assertEquals(sparse, result instanceof SparseInstance);
+                if(sparse && instance instanceof SparseInstance)//the same values are stored, missing ones included
+                    assertEquals(representation + " row " + i, instance.numValues(), result.numValues());
+            }
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package com.edwardraff.wekajsatbridge;
+
+/*
+ * Copyright (C) 2014 Edward Raff
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import jsat.classifiers.CategoricalData;
+import jsat.classifiers.ClassificationDataSet;
+import jsat.classifiers.DataPoint;
+import jsat.exceptions.UntrainedModelException;
+import jsat.linear.DenseVector;
+import jsat.regression.RegressionDataSet;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import weka.classifiers.bayes.NaiveBayes;
+import weka.classifiers.functions.LinearRegression;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests saving and loading {@link ModelBundle}s. The data points have one
+ * categorical feature with three values and two numeric features.
+ *
+ * @author Edward Raff
+ */
+public class ModelBundleTest
+{
+    private static final CategoricalData[] CATEGORIES = new CategoricalData[]{new CategoricalData(3)};
+    private static final int NUM_NUMERIC = 2;
+    /**
+     * The offset of the length of the serialized header: magic, version, kind,
+     * the number of categorical features and their sizes, the number of
+     * numeric features and the number of target classes
+     */
+    private static final int HEADER_LENGTH_OFFSET = 4 + 4 + 1 + 4 + 4 * 1 + 4 + 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path path;
+    private WekaClassifier classifier;
+    private WekaRegressor regressor;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        path = folder.getRoot().toPath().resolve("model.bundle");
+
+        ClassificationDataSet cds = new ClassificationDataSet(NUM_NUMERIC, CATEGORIES, new CategoricalData(2));
+        RegressionDataSet rds = new RegressionDataSet(NUM_NUMERIC, CATEGORIES);
+        for(int i = 0; i < 60; i++)
+        {
+            int label = i % 2;
+            DataPoint dp = dataPoint(i % 3, label * 2 + (i % 7) / 7.0, -label + (i % 5) / 5.0);
+            cds.addDataPoint(dp, label);
+            rds.addDataPoint(dp, 3 * dp.getNumericalValues().get(0) - dp.getNumericalValues().get(1) + dp.getCategoricalValue(0));
+        }
+
+        classifier = new WekaClassifier(new NaiveBayes());
+        classifier.trainC(cds);
+        regressor = new WekaRegressor(new LinearRegression());
+        regressor.train(rds);
+    }
+
+    private static DataPoint dataPoint(int category, double x, double y)
+    {
+        return new DataPoint(new DenseVector(new double[]{x, y}), new int[]{category}, CATEGORIES);
+    }
+
+    private static DataPoint[] queries()
+    {
+        return new DataPoint[]
+        {
+            dataPoint(0, 0.1, 0.4), dataPoint(1, 2.3, -0.8), dataPoint(2, 1.0, 0.0), dataPoint(1, -1.5, 3.0)
+        };
+    }
+
+    @Test
+    public void testClassifierRoundTrip() throws IOException
+    {
+        ModelBundle.save(classifier, path);
+        for(boolean lazy : new boolean[]{true, false})
+        {
+            WekaClassifier loaded = ModelBundle.loadClassifier(path, CATEGORIES, NUM_NUMERIC, lazy);
+            assertEquals(classifier.getNumCategories(), loaded.getNumCategories());
+            for(DataPoint dp : queries())
+                assertArrayEquals(classifier.classify(dp).getVecView().arrayCopy(), loaded.classify(dp).getVecView().arrayCopy(), 0.0);
+        }
+    }
+
+    @Test
+    public void testRegressorRoundTrip() throws IOException
+    {
+        ModelBundle.save(regressor, path);
+        for(boolean lazy : new boolean[]{true, false})
+        {
+            WekaRegressor loaded = ModelBundle.loadRegressor(path, CATEGORIES, NUM_NUMERIC, lazy);
+            for(DataPoint dp : queries())
+                assertEquals(regressor.regress(dp), loaded.regress(dp), 0.0);
+        }
+    }
+
+    @Test
+    public void testSaveReplacesExisting() throws IOException
+    {
+        Files.write(path, new byte[]{1, 2, 3});
+        ModelBundle.save(classifier, path);
+        ModelBundle.save(classifier, path);
+        ModelBundle.loadClassifier(path);
+        //the temporary file was moved into place, not left behind
+        assertArrayEquals(new String[]{path.getFileName().toString()}, folder.getRoot().list());
+    }
+
+    @Test(expected = UntrainedModelException.class)
+    public void testSaveUntrained() throws IOException
+    {
+        ModelBundle.save(new WekaClassifier(new NaiveBayes()), path);
+    }
+
+    @Test
+    public void testLazyLoadKeepsModelSerialized() throws IOException
+    {
+        ModelBundle.save(classifier, path);
+        byte[] model = classifier.getSerializedModel();
+        WekaClassifier loaded = ModelBundle.loadClassifier(path);
+        //an unused lazy model is handed back without being deserialized
+        assertArrayEquals(model, loaded.getSerializedModel());
+        //copies of an unused lazy model are lazy as well
+        assertArrayEquals(model, loaded.clone().getSerializedModel());
+    }
+
+    @Test
+    public void testLazyLoadDefersModelErrors() throws IOException
+    {
+        ModelBundle.save(classifier, path);
+        //the model is the last thing in the bundle, so break its stream header
+        byte[] bytes = Files.readAllBytes(path);
+        int modelStart = bytes.length - classifier.getSerializedModel().length;
+        bytes[modelStart] = bytes[modelStart + 1] = 0;
+        Files.write(path, bytes);
+
+        WekaClassifier loaded = ModelBundle.loadClassifier(path, CATEGORIES, NUM_NUMERIC, true);
+        try
+        {
+            loaded.classify(queries()[0]);
+            fail("A broken model must fail when it is first used");
+        }
+        catch (IllegalStateException ex)
+        {
+            assertEquals("The serialized Weka model could not be loaded", ex.getMessage());
+        }
+
+        try
+        {
+            ModelBundle.loadClassifier(path, CATEGORIES, NUM_NUMERIC, false);
+            fail("A broken model must fail when loaded eagerly");
+        }
+        catch (IllegalStateException ex)
+        {
+            assertEquals("The serialized Weka model could not be loaded", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testTruncated() throws IOException
+    {
+        ModelBundle.save(classifier, path);
+        byte[] bytes = Files.readAllBytes(path);
+        int step = Math.max(1, bytes.length / 200);
+        for(int length = 0; length < bytes.length; length += length < 64 ? 1 : step)
+        {
+            Files.write(path, Arrays.copyOf(bytes, length));
+            try
+            {
+                ModelBundle.loadClassifier(path);
+                fail("A bundle truncated to " + length + " of " + bytes.length + " bytes must not load");
+            }
+            catch (IOException ex)
+            {
+                //expected
+            }
+        }
+    }
+
+    @Test
+    public void testNotABundle() throws IOException
+    {
+        ModelBundle.save(classifier, path);
+        byte[] bytes = Files.readAllBytes(path);
+        bytes[0] ^= 0xFF;
+        Files.write(path, bytes);
+        assertLoadFails(path + " is not a model bundle");
+    }
+
+    @Test
+    public void testUnsupportedVersion() throws IOException
+    {
+        ModelBundle.save(classifier, path);
+        byte[] bytes = Files.readAllBytes(path);
+        ByteBuffer.wrap(bytes).putInt(4, 2);
+        Files.write(path, bytes);
+        assertLoadFails("Unsupported model bundle version 2, expected 1");
+    }
+
+    @Test
+    public void testCorruptLengths() throws IOException
+    {
+        ModelBundle.save(classifier, path);
+        byte[] bytes = Files.readAllBytes(path);
+        for(int length : new int[]{-1, Integer.MIN_VALUE, bytes.length, Integer.MAX_VALUE})
+        {
+            byte[] corrupt = bytes.clone();
+            ByteBuffer.wrap(corrupt).putInt(HEADER_LENGTH_OFFSET, length);
+            Files.write(path, corrupt);
+            assertLoadFails(path + " is truncated or corrupt");
+        }
+        //the number of categorical features is read the same way
+        byte[] corrupt = bytes.clone();
+        ByteBuffer.wrap(corrupt).putInt(9, Integer.MAX_VALUE);
+        Files.write(path, corrupt);
+        assertLoadFails(path + " is truncated or corrupt");
+    }
+
+    @Test
+    public void testKindMismatch() throws IOException
+    {
+        ModelBundle.save(classifier, path);
+        try
+        {
+            ModelBundle.loadRegressor(path);
+            fail("A classifier bundle must not load as a regressor");
+        }
+        catch (IOException ex)
+        {
+            assertEquals(path + " does not hold a regressor", ex.getMessage());
+        }
+
+        ModelBundle.save(regressor, path);
+        assertLoadFails(path + " does not hold a classifier");
+    }
+
+    @Test
+    public void testLayoutCheck() throws IOException
+    {
+        ModelBundle.save(classifier, path);
+        assertLayoutFails(new CategoricalData[0], NUM_NUMERIC, "Model expects 1 categorical features, not 0");
+        assertLayoutFails(new CategoricalData[]{new CategoricalData(3), new CategoricalData(2)}, NUM_NUMERIC, "Model expects 1 categorical features, not 2");
+        assertLayoutFails(new CategoricalData[]{new CategoricalData(4)}, NUM_NUMERIC, "Model expects categorical feature 0 to have 3 values, not 4");
+        assertLayoutFails(CATEGORIES, NUM_NUMERIC + 1, "Model expects 2 numeric features, not 3");
+
+        ModelBundle.save(regressor, path);
+        try
+        {
+            ModelBundle.loadRegressor(path, CATEGORIES, 0, true);
+            fail("The numeric feature count must be checked");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            assertEquals("Model expects 2 numeric features, not 0", ex.getMessage());
+        }
+    }
+
+    private void assertLoadFails(String message)
+    {
+        try
+        {
+            ModelBundle.loadClassifier(path);
+            fail("Expected the bundle to fail with: " + message);
+        }
+        catch (IOException ex)
+        {
+            assertEquals(message, ex.getMessage());
+        }
+    }
+
+    private void assertLayoutFails(CategoricalData[] categories, int numNumerical, String message) throws IOException
+    {
+        try
+        {
+            ModelBundle.loadClassifier(path, categories, numNumerical, true);
+            fail("Expected the layout check to fail with: " + message);
+        }
+        catch (IllegalArgumentException ex)
+        {
+            assertEquals(message, ex.getMessage());
+        }
+    }
+}